@@ -38,7 +38,6 @@ import org.junit.runner.RunWith;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 
 import biweekly.component.VEvent;
 import biweekly.property.Organizer;
@@ -184,7 +183,7 @@ public class FBCalendarAndroidUnitTest {
         FBEvent multiDayFutureEvent = createEvent(context, calendar, "Multiday Future Event", "00006", start, end);
         Assert.assertNotNull(multiDayFutureEvent);
 
-        HashMap<String, Long> events = null;
+        StringLongMap events = null;
         try {
             events = calendar.fetchLocalPastEvents();
         } catch (Exception e) {
@@ -251,7 +250,7 @@ public class FBCalendarAndroidUnitTest {
         FBEvent multiDayFutureEvent = createEvent(context, calendar, "Multiday Future Event", "00006", start, end);
         Assert.assertNotNull(multiDayFutureEvent);
 
-        HashMap<String, Long> events = null;
+        StringLongMap events = null;
         try {
             events = calendar.fetchLocalFutureEvents();
         } catch (Exception e) {
@@ -19,8 +19,6 @@ package cz.dvratil.fbeventsync;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-
 public class InspectableFBCalendar extends FBCalendar {
 
     public InspectableFBCalendar(SyncContext context, FBCalendar.CalendarType type) {
@@ -58,13 +56,13 @@ public class InspectableFBCalendar extends FBCalendar {
 
     @Override
     @NotNull
-    public HashMap<String, Long> fetchLocalPastEvents() throws android.os.RemoteException {
+    public StringLongMap fetchLocalPastEvents() throws android.os.RemoteException {
         return super.fetchLocalPastEvents();
     }
 
     @Override
     @NotNull
-    public HashMap<String, Long> fetchLocalFutureEvents() throws android.os.RemoteException {
+    public StringLongMap fetchLocalFutureEvents() throws android.os.RemoteException {
         return super.fetchLocalFutureEvents();
     }
 }
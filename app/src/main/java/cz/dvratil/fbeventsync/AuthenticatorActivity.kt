@@ -65,7 +65,7 @@ class AuthenticatorActivity : AccountAuthenticatorActivity() {
     private lateinit var mLogger: Logger
 
     private fun linkExtractionFailed(s: String) {
-        mLogger.debug("AUTH", "Link extraction failed: $s")
+        mLogger.debug("AUTH") { "Link extraction failed: $s" }
         Toast.makeText(this, "Authentication error: $s", Toast.LENGTH_LONG)
                 .show()
     }
@@ -230,7 +230,7 @@ class AuthenticatorActivity : AccountAuthenticatorActivity() {
         if (isFinishing) {
             return
         }
-        mLogger.debug("AUTH", "Creating account $mAccountName")
+        mLogger.debug("AUTH") { "Creating account $mAccountName" }
         val intent = intent
         val account = Account(mAccountName, intent.getStringExtra(AccountManager.KEY_ACCOUNT_TYPE))
         if (intent.getBooleanExtra(ARG_IS_ADDING_NEW_ACCOUNT, false)) {
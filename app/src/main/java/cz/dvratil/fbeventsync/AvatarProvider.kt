@@ -50,7 +50,7 @@ object AvatarProvider {
 
                             val ct = headers?.find { it.name.equals("content-type", true) }
                             if (ct == null || !ct.value.contains("image/")) {
-                                logger.debug(TAG, "Avatar response is not an image: ${ct?.value ?: "unknown content-type"}")
+                                logger.debug(TAG) { "Avatar response is not an image: ${ct?.value ?: "unknown content-type"}" }
                                 return
                             }
 
@@ -0,0 +1,91 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.accounts.AccountManager
+import android.provider.CalendarContract
+
+// Migrates local calendars and events of an account created by older versions of the app. Each
+// step only changes what the corresponding version needs, existing events are kept. Changes to
+// event content (e.g. a different representation of birthdays) don't need a step at all: the
+// event fingerprint changes and the events get updated during the next regular sync.
+object CalendarMigrator {
+
+    private const val TAG = "CalendarMigrator"
+
+    private const val CALENDAR_DATA_VERSION = 2
+
+    private const val DATA_VERSION_KEY = "calendar_data_version"
+
+    // Returns false when a step has failed; the remaining steps will be retried during next sync.
+    fun migrate(context: SyncContext, calendars: FBCalendar.Set): Boolean {
+        val accountManager = AccountManager.get(context.context)
+        var version = accountManager.getUserData(context.account, DATA_VERSION_KEY)?.toIntOrNull() ?: 0
+
+        // Nothing to do
+        if (version >= CALENDAR_DATA_VERSION) {
+            return true
+        }
+
+        context.logger.info(TAG, "Migrating calendar data from version $version to $CALENDAR_DATA_VERSION")
+        try {
+            if (version < 1) {
+                updateToVersion1(context)
+                version = 1
+                accountManager.setUserData(context.account, DATA_VERSION_KEY, version.toString())
+            }
+            if (version < 2) {
+                updateToVersion2(calendars)
+                version = 2
+                accountManager.setUserData(context.account, DATA_VERSION_KEY, version.toString())
+            }
+        } catch (e: Exception) {
+            when (e) {
+                is android.os.RemoteException,
+                is android.database.sqlite.SQLiteException,
+                is java.lang.IllegalArgumentException -> {
+                    context.logger.error(TAG, "Migration to version ${version + 1} failed: $e")
+                    return false
+                }
+                else -> {
+                    context.logger.error(TAG, "Migration to version ${version + 1} failed: unhandled $e")
+                    throw e
+                }
+            }
+        }
+        return true
+    }
+
+    // Version 1 removes the legacy "birthday" calendar, which has been replaced by
+    // fb_birthday_calendar
+    private fun updateToVersion1(context: SyncContext) {
+        context.logger.debug(TAG, "Removing legacy birthday calendar")
+        context.contentProviderClient.delete(
+                context.contentUri(CalendarContract.Calendars.CONTENT_URI),
+                "(${CalendarContract.Calendars.NAME} = ?)",
+                arrayOf("birthday") // old name for the fb_birthday_calendar calendar
+        )
+    }
+
+    // Version 2 replaces wiping all calendars on each upgrade. Calendars created by older versions
+    // may have outdated properties (display name, allowed reminders, ...), which used to be fixed
+    // by re-creating them.
+    private fun updateToVersion2(calendars: FBCalendar.Set) {
+        calendars.values.forEach { it.updateLocalCalendarProperties() }
+    }
+}
@@ -39,21 +39,25 @@ import android.provider.CalendarContract
 import android.support.v4.app.NotificationCompat
 import android.support.v4.content.ContextCompat
 
-import com.loopj.android.http.DataAsyncHttpResponseHandler
-
+import java.io.IOException
 import java.util.Calendar
 import java.util.Locale
+import java.util.TimeZone
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadPoolExecutor
 
-import biweekly.Biweekly
 import cz.msebera.android.httpclient.Header
 import cz.msebera.android.httpclient.client.utils.URIBuilder
 
-class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractThreadedSyncAdapter(context, autoInitialize) {
+// Syncs of different accounts run in parallel (see allowParallelSyncs in syncadapter.xml), so
+// all per-sync state lives in the SyncContext that is passed around, not in the adapter.
+class CalendarSyncAdapter(context: Context, autoInitialize: Boolean)
+        : AbstractThreadedSyncAdapter(context, autoInitialize, true) {
 
     private var logger: Logger
 
-    private var mSyncContext: SyncContext? = null
-
     init {
         PreferencesMigrator.migrate(context)
         logger = Logger.getInstance(context)
@@ -66,51 +70,60 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
                                provider: ContentProviderClient, syncResult: SyncResult) {
         logger.info(TAG, "performSync request for account ${account.name}, authority $authority")
 
-        if (mSyncContext != null) {
-            logger.warning(TAG, "SyncContext not null, another sync already running? Aborting this one")
-            return
-        }
-
-        if (!checkPermissions()) {
-            logger.info(TAG, "Skipping sync, missing permissions")
-            return
-        }
-
-        val prefs = Preferences(context)
-
-        // Don't sync more often than every minute
-        val now = (Calendar.getInstance().timeInMillis / 1000).toInt()
-        val lastSync = prefs.lastSyncTime()
-        if (!BuildConfig.DEBUG) {
-            if (now - lastSync < 60) {
-                logger.info(TAG, "Skipping sync, last sync was only ${(now - lastSync)} seconds ago")
+        val run = SyncHistory.Run(account.name)
+        SyncTrace.begin("onPerformSync")
+        try {
+            if (!checkPermissions()) {
+                logger.info(TAG, "Skipping sync, missing permissions")
+                run.skip(SyncHistory.Outcome.SKIPPED, "missing permissions")
                 return
             }
-            prefs.setLastSyncTime(now)
-        }
 
-        // Allow up to 5 syncs per hour
-        var syncsPerHour = prefs.syncsPerHour()
-        if (!BuildConfig.DEBUG) {
-            if (now - lastSync < 3600) {
-                val calendar = Calendar.getInstance()
-                val hour = calendar.get(Calendar.HOUR)
-                logger.debug(TAG, "Lasy sync hour: ${calendar.get(Calendar.HOUR)}, now sync hour: $hour")
-                if (calendar.get(Calendar.HOUR) != hour) {
-                    syncsPerHour = 1
-                } else {
-                    syncsPerHour++
+            synchronized(sRunningSyncs) {
+                if (!sRunningSyncs.add(account.name)) {
+                    logger.warning(TAG, "Another sync of ${account.name} is already running, aborting this one")
+                    run.skip(SyncHistory.Outcome.SKIPPED, "already running")
+                    return
                 }
-                if (syncsPerHour > 5) {
-                    logger.info(TAG, "Skipping sync, too many syncs per hour")
+            }
+            try {
+                if (!BuildConfig.DEBUG && isThrottled(account, run)) {
                     return
                 }
-            } else {
-                syncsPerHour = 1
-                prefs.setSyncsPerHour(syncsPerHour)
+                performSync(account, provider, syncResult, run)
+            } finally {
+                synchronized(sRunningSyncs) {
+                    sRunningSyncs.remove(account.name)
+                }
+            }
+        } finally {
+            run.durationMs = System.currentTimeMillis() - run.startTime
+            SyncHistory.getInstance(context).record(run)
+            SyncDiagnostics.recordRun(run)
+            logger.flush()
+            SyncTrace.end()
+        }
+    }
+
+    private fun isThrottled(account: Account, run: SyncHistory.Run): Boolean {
+        val throttle = SyncThrottle(context, account)
+        val now = (Calendar.getInstance().timeInMillis / 1000).toInt()
+        return when (throttle.acquire(now)) {
+            SyncThrottle.Result.TOO_SOON -> {
+                logger.info(TAG, "Skipping sync, last sync was only ${(now - throttle.lastSyncTime)} seconds ago")
+                run.skip(SyncHistory.Outcome.THROTTLED, "too soon")
+                true
             }
+            SyncThrottle.Result.ALLOWED -> false
         }
+    }
 
+    private fun performSync(account: Account, provider: ContentProviderClient, syncResult: SyncResult,
+                            run: SyncHistory.Run) {
+        val prefs = Preferences(context)
+        val settings = SyncSettings.load(prefs)
+        // The setting may have changed in the UI process since the last sync
+        logger.minLevel = if (settings.debugLogging) Logger.Level.DEBUG else Logger.Level.INFO
         val mgr = AccountManager.get(context)
         val cookies: String?
         try {
@@ -118,6 +131,7 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
             if (cookies == null) {
                 logger.debug(TAG, "Needs to re-authenticate, will wait for user")
                 createAuthNotification()
+                run.skip(SyncHistory.Outcome.SKIPPED, "not authenticated")
                 return
             } else {
                 logger.debug(TAG, "Access token received")
@@ -129,6 +143,7 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
                 is java.io.IOException -> {
                     logger.error(TAG, "getAuthToken: $e")
                     syncResult.stats.numAuthExceptions++
+                    run.fail("authentication error")
                     return
                 }
                 else -> {
@@ -138,38 +153,14 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
             }
         }
 
-        val preferences = Preferences(context)
-        val syncContext = SyncContext(context, account, cookies, provider, syncResult, preferences, logger)
-        mSyncContext = syncContext
+        val syncContext = SyncContext(context, account, cookies, provider, syncResult, prefs, logger, run, settings)
 
         val calendars = FBCalendar.Set()
         calendars.initialize(syncContext)
-        if (prefs.lastVersion() != BuildConfig.VERSION_CODE) {
-            logger.info(TAG, "New version detected: deleting all calendars")
-            removeOldBirthdayCalendar(syncContext)
-            try {
-                calendars.values.forEach {
-                    it.deleteLocalCalendar()
-                }
-            } catch (e: Exception) {
-                when (e) {
-                    is android.os.RemoteException,
-                    is android.database.sqlite.SQLiteException -> {
-                        logger.error(TAG, "removeOldCalendars: $e")
-                        syncResult.stats.numIoExceptions++
-                        return
-                    }
-                    else -> {
-                        logger.error(TAG, "removeOldCalendars: unhandled $e")
-                        throw e
-                    }
-                }
-            }
-
-            prefs.setLastVersion(BuildConfig.VERSION_CODE)
-
-            // We have to re-initialize calendars now so that they get re-created
-            calendars.initialize(syncContext)
+        if (!CalendarMigrator.migrate(syncContext, calendars)) {
+            syncResult.stats.numIoExceptions++
+            run.fail("calendar migration failed")
+            return
         }
 
         /*
@@ -194,23 +185,19 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
         }
         */
 
-        if (syncEventsViaICal(calendars)) {
-            calendars.forEach {
-                if (it.value.type() != FBCalendar.CalendarType.TYPE_BIRTHDAY) {
-                    it.value.finalizeSync()
-                }
-            }
-        }
-
-        if (calendars[FBCalendar.CalendarType.TYPE_BIRTHDAY]?.isEnabled == true) {
-            if (syncBirthdayCalendar(calendars)) {
-                calendars[FBCalendar.CalendarType.TYPE_BIRTHDAY]!!.finalizeSync()
+        // Both feeds are downloaded in parallel, but applied one after another
+        val feeds = listOfNotNull(startEventsFeed(syncContext, calendars), startBirthdayFeed(syncContext, calendars))
+        try {
+            feeds.forEach { syncICalFeed(syncContext, calendars, it) }
+        } finally {
+            feeds.forEach {
+                it.fetch.cancel(true)
+                it.download.discard()
             }
         }
 
-        mSyncContext = null
-
-        logger.info(TAG, "Sync for ${account.name} done")
+        run.finish(syncContext.timings, syncResult)
+        logger.info(TAG, "Sync for ${account.name} done (${syncContext.timings})")
     }
 
     private enum class ICalURIType {
@@ -218,51 +205,52 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
         BIRTHDAYS
     }
 
-    private fun getICalSyncURI(uriType: ICalURIType): Uri? {
-        val syncContext = mSyncContext ?: return null
-        val accManager = AccountManager.get(syncContext.context)
-        val uid: String?
-        val key: String?
-        try {
-            // This block will automatically trigger authentication if the tokens are missing, so
-            // no explicit migration from the old bday_uri is needed
-            uid = accManager.blockingGetAuthToken(syncContext.account, Authenticator.FB_UID_TOKEN, false)
-            key = accManager.blockingGetAuthToken(syncContext.account, Authenticator.FB_KEY_TOKEN, false)
-        } catch (e: Exception) {
-            when (e) {
-                is android.accounts.OperationCanceledException,
-                is java.io.IOException,
-                is android.accounts.AuthenticatorException -> {
-                    logger.error(TAG, "getIcalSyncURI: $e")
-                    return null
-                }
-                else -> {
-                    logger.error(TAG, "getIcalSyncUri: unhandled $e")
-                    throw e
+    private fun getICalSyncURI(syncContext: SyncContext, uriType: ICalURIType): Uri? {
+        return SyncTrace.section("getICalSyncURI") {
+            val accManager = AccountManager.get(syncContext.context)
+            val uid: String?
+            val key: String?
+            try {
+                // This block will automatically trigger authentication if the tokens are missing, so
+                // no explicit migration from the old bday_uri is needed
+                uid = accManager.blockingGetAuthToken(syncContext.account, Authenticator.FB_UID_TOKEN, false)
+                key = accManager.blockingGetAuthToken(syncContext.account, Authenticator.FB_KEY_TOKEN, false)
+            } catch (e: Exception) {
+                when (e) {
+                    is android.accounts.OperationCanceledException,
+                    is java.io.IOException,
+                    is android.accounts.AuthenticatorException -> {
+                        logger.error(TAG, "getIcalSyncURI: $e")
+                        return null
+                    }
+                    else -> {
+                        logger.error(TAG, "getIcalSyncUri: unhandled $e")
+                        throw e
+                    }
+
                 }
+            }
 
+            if (uid == null || key == null || uid.isEmpty() || key.isEmpty()) {
+                logger.error(TAG, "Failed to obtain UID/KEY tokens from account manager")
+                // We only need to invalidate one token to force re-sync
+                accManager.invalidateAuthToken(syncContext.context.getString(R.string.account_type), syncContext.accessToken)
+                return null
             }
-        }
 
-        if (uid == null || key == null || uid.isEmpty() || key.isEmpty()) {
-            logger.error(TAG, "Failed to obtain UID/KEY tokens from account manager")
-            // We only need to invalidate one token to force re-sync
-            accManager.invalidateAuthToken(syncContext.context.getString(R.string.account_type), syncContext.accessToken)
-            return null
-        }
+            var userLocale = syncContext.settings.language
+            if (userLocale == syncContext.context.getString(R.string.pref_language_default_value)) {
+                val locale = Locale.getDefault()
+                userLocale = "${locale.language}_${locale.country}"
+            }
 
-        var userLocale = syncContext.preferences.language()
-        if (userLocale == syncContext.context.getString(R.string.pref_language_default_value)) {
-            val locale = Locale.getDefault()
-            userLocale = "${locale.language}_${locale.country}"
+            Uri.parse("https://www.facebook.com").buildUpon()
+                    .path(if (uriType == ICalURIType.EVENTS) "/events/ical/upcoming/" else "/events/ical/birthdays/")
+                    .appendQueryParameter("uid", uid)
+                    .appendQueryParameter("key", key)
+                    .appendQueryParameter("locale", userLocale)
+                    .build()
         }
-
-        return Uri.parse("https://www.facebook.com").buildUpon()
-                .path(if (uriType == ICalURIType.EVENTS) "/events/ical/upcoming/" else "/events/ical/birthdays/")
-                .appendQueryParameter("uid", uid)
-                .appendQueryParameter("key", key)
-                .appendQueryParameter("locale", userLocale)
-                .build()
     }
 
     private fun sanitizeICalUri(uri: Uri): String {
@@ -318,8 +306,7 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
         return true
     }
 
-    private fun syncBirthdaysViaWeb(calendars: FBCalendar.Set): Boolean {
-        val context = mSyncContext ?: return false
+    private fun syncBirthdaysViaWeb(calendars: FBCalendar.Set, context: SyncContext): Boolean {
         val accountManager = AccountManager.get(context.context)
         val cookies = accountManager.getUserData(context.account, Authenticator.FB_COOKIES)
         val events = EventScraper().fetchBirthdays(context, cookies)
@@ -334,92 +321,198 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
         return true
     }
 */
-    private fun syncEventsViaICal(calendars: FBCalendar.Set): Boolean {
-        val uri = getICalSyncURI(ICalURIType.EVENTS) ?: return false
+    // A feed whose download is already running in the background
+    private class ICalFeed(val uriType: ICalURIType,
+                           val uri: Uri,
+                           val targets: List<FBCalendar>,
+                           val feedState: ICalFeedState,
+                           val stamp: String,
+                           val download: ICalFeedDownload,
+                           val fetch: Future<*>)
+
+    // Feeds are only downloaded when at least one of the calendars they feed is enabled
+    private fun startEventsFeed(syncContext: SyncContext, calendars: FBCalendar.Set): ICalFeed? {
+        val targets = calendars.values.filter { it.type() != FBCalendar.CalendarType.TYPE_BIRTHDAY }
+        if (targets.none { it.isEnabled }) {
+            logger.info(TAG, "Skipping event iCal, all event calendars are disabled")
+            return null
+        }
+        val uri = getICalSyncURI(syncContext, ICalURIType.EVENTS) ?: return null
 
-        logger.debug(TAG, "Syncing event iCal from ${sanitizeICalUri(uri)}")
-        return syncICalCalendar(calendars, uri.toString())
+        logger.debug(TAG) { "Syncing event iCal from ${sanitizeICalUri(uri)}" }
+        return startICalFeed(syncContext, ICalURIType.EVENTS, uri, targets)
     }
 
-    private fun syncBirthdayCalendar(calendars: FBCalendar.Set): Boolean {
-        val uri = getICalSyncURI(ICalURIType.BIRTHDAYS) ?: return false
+    private fun startBirthdayFeed(syncContext: SyncContext, calendars: FBCalendar.Set): ICalFeed? {
+        val targets = calendars.values.filter { it.type() == FBCalendar.CalendarType.TYPE_BIRTHDAY }
+        if (targets.none { it.isEnabled }) {
+            logger.info(TAG, "Skipping birthday iCal, birthday calendar is disabled")
+            return null
+        }
+        val uri = getICalSyncURI(syncContext, ICalURIType.BIRTHDAYS) ?: return null
 
-        logger.debug(TAG, "Syncing birthday iCal from ${sanitizeICalUri(uri)}")
-        return syncICalCalendar(calendars, uri.toString())
+        logger.debug(TAG) { "Syncing birthday iCal from ${sanitizeICalUri(uri)}" }
+        return startICalFeed(syncContext, ICalURIType.BIRTHDAYS, uri, targets)
     }
 
-    private fun syncICalCalendar(calendars: FBCalendar.Set, uri: String): Boolean {
-        var success = false
-        Graph.fetchBirthdayICal(uri, object : DataAsyncHttpResponseHandler() {
-            override fun onSuccess(statusCode: Int, headers: Array<Header>, responseBody: ByteArray?) {
-                val syncContext = mSyncContext ?: return
-                if (responseBody == null) {
-                    logger.error(TAG, "Response body is empty!")
-                    return
+    private fun startICalFeed(syncContext: SyncContext, uriType: ICalURIType, uri: Uri, targets: List<FBCalendar>): ICalFeed {
+        val feedState = ICalFeedState.load(context, syncContext.account, uriType.name.toLowerCase(Locale.US))
+        val stamp = feedConfigStamp(syncContext, uri, targets)
+        val download = ICalFeedDownload(context.cacheDir)
+        val conditionalHeaders = feedState.conditionalHeaders(stamp)
+        // The download waits in the executor queue first, the async section covers that as well
+        val traceName = "fetch ${uriType.name.toLowerCase(Locale.US)}"
+        val traceCookie = SyncTrace.beginAsync(traceName)
+        val fetch = sDownloadExecutor.submit {
+            try {
+                syncContext.timings.measure(SyncStageTimings.Stage.FETCH) {
+                    Graph.fetchBirthdayICal(uri.toString(), conditionalHeaders, download)
                 }
+            } finally {
+                SyncTrace.endAsync(traceName, traceCookie)
+            }
+        }
+        return ICalFeed(uriType, uri, targets, feedState, stamp, download, fetch)
+    }
 
-                // content-type: text/html and no content-disposition indicates an error - let's assume
-                // it's just invalid key and try to re-authenticate
-                if (headers.any { it.name.equals("content-type", true) && it.value.contains("text/html",true) }
-                    && headers.none { it.name.equals("content-disposition", true) }) {
-                    logger.debug(TAG, "Response indicates expired iCal URI, offering reauthentication")
-                    AccountManager.get(context).invalidateAuthToken(context.getString(R.string.account_type), syncContext.accessToken)
-                    createAuthNotification()
-                    return
-                }
+    private enum class ICalSyncResult {
+        UPDATED,
+        UNCHANGED,
+        FAILED
+    }
 
-                val cal = Biweekly.parse(String(responseBody)).first()
-                cal.events.forEach {
-                    val event = FBEvent.parse(it, syncContext)
-                    val calendar = calendars.getCalendarForEvent(event) ?: return
-                    if (calendar.isEnabled) {
-                        event.setCalendar(calendar)
-                        calendar.syncEvent(event)
-                    }
-                }
-                logger.debug(TAG, "iCal sync done")
-                success = true
+    // Waits for the feed to download and applies it to the given calendars. When the server tells us
+    // the feed has not changed (304), or sends us the very same bytes as last time, the calendars are
+    // left completely untouched - there is nothing to parse, diff or remove.
+    private fun syncICalFeed(syncContext: SyncContext, calendars: FBCalendar.Set, feed: ICalFeed) {
+        when (syncICalCalendar(syncContext, calendars, feed)) {
+            ICalSyncResult.UPDATED -> {
+                val start = System.nanoTime()
+                feed.targets.forEach { it.finalizeSync() }
+                SyncDiagnostics.record(SyncDiagnostics.Metric.FINALIZE, (System.nanoTime() - start) / 1000000)
+                feed.feedState.save()
+                SyncDiagnostics.recordFeed(SyncDiagnostics.FeedResult.UPDATED)
+            }
+            ICalSyncResult.UNCHANGED -> {
+                logger.info(TAG, "iCal feed ${feed.uriType.name} has not changed since last sync")
+                feed.feedState.save()
+            }
+            ICalSyncResult.FAILED -> {
+                syncContext.run.fail("${feed.uriType.name.toLowerCase(Locale.US)} feed failed")
+                SyncDiagnostics.recordFeed(SyncDiagnostics.FeedResult.FAILED)
+            }
+        }
+    }
+
+    // Everything besides the feed content that affects what we write into the calendars. If any of
+    // it changes, the feed must be applied again even if it is identical to the last one.
+    private fun feedConfigStamp(syncContext: SyncContext, uri: Uri, targets: List<FBCalendar>): String {
+        val stamp = StringBuilder()
+        // Events are written with the default timezone and localized strings (e.g. birthday titles)
+        @Suppress("DEPRECATION")
+        val locale = syncContext.context.resources.configuration.locale
+        stamp.append(BuildConfig.VERSION_CODE).append('|')
+                .append(uri.toString()).append('|')
+                .append(syncContext.settings.fbLink).append('|')
+                .append(TimeZone.getDefault().id).append('|')
+                .append(locale)
+        targets.filter { it.isEnabled }.sortedBy { it.type() }.forEach { calendar ->
+            stamp.append('|').append(calendar.id())
+                    .append(':').append(calendar.localId())
+                    .append(':').append(calendar.reminderIntervals.joinToString(",") { it.serialize() })
+                    .append(':').append(calendar.allDayReminderIntervals.joinToString(",") { it.serialize() })
+        }
+        return ICalFeedState.digest(stamp.toString().toByteArray())
+    }
+
+    private fun syncICalCalendar(syncContext: SyncContext, calendars: FBCalendar.Set, feed: ICalFeed): ICalSyncResult {
+        val download = feed.download
+        val feedState = feed.feedState
+        val stamp = feed.stamp
+        try {
+            try {
+                feed.fetch.get()
+            } catch (e: InterruptedException) {
+                // The sync has been cancelled
+                feed.fetch.cancel(true)
+                logger.info(TAG, "iCal download interrupted")
+                return ICalSyncResult.FAILED
+            } catch (e: ExecutionException) {
+                logger.error(TAG, "Error retrieving iCal file: ${e.cause}")
+                return ICalSyncResult.FAILED
+            }
+            syncContext.run.addDownload(download.statusCode, download.feedFile?.length() ?: 0)
+            if (download.statusCode == HTTP_NOT_MODIFIED) {
+                SyncDiagnostics.recordFeed(SyncDiagnostics.FeedResult.NOT_MODIFIED)
+                return ICalSyncResult.UNCHANGED
             }
 
-            override fun onFailure(statusCode: Int, headers: Array<Header>?, responseBody: ByteArray?, error: Throwable?) {
-                val err = if (responseBody == null) "Unknown error" else String(responseBody)
-                logger.error(TAG, "Error retrieving iCal file: $statusCode, $err")
-                logger.error(TAG, "URI: $uri")
-                headers?.forEach {
+            val feedFile = download.feedFile
+            val digest = download.digest
+            if (!download.isSuccessful() || feedFile == null || digest == null) {
+                logger.error(TAG, "Error retrieving iCal file: ${download.statusCode}, ${download.errorBody ?: "Unknown error"}")
+                logger.error(TAG, "URI: ${sanitizeICalUri(feed.uri)}")
+                download.headers.forEach {
                     logger.error(TAG, "    ${it.name}: ${it.value}")
                 }
-                if (error != null) {
-                    logger.error(TAG, "Throwable: $error")
+                download.error?.let {
+                    logger.error(TAG, "Throwable: $it")
                 }
+                return ICalSyncResult.FAILED
             }
 
-            override fun onProgressData(responseBody: ByteArray?) {
-                // silence debug output
+            // content-type: text/html and no content-disposition indicates an error - let's assume
+            // it's just invalid key and try to re-authenticate
+            val headers = download.headers
+            if (headers.any { it.name.equals("content-type", true) && it.value.contains("text/html",true) }
+                && headers.none { it.name.equals("content-disposition", true) }) {
+                logger.debug(TAG, "Response indicates expired iCal URI, offering reauthentication")
+                AccountManager.get(context).invalidateAuthToken(context.getString(R.string.account_type), syncContext.accessToken)
+                createAuthNotification()
+                return ICalSyncResult.FAILED
             }
-        })
 
-        return success
-    }
+            if (feedState.isUnchanged(stamp, digest)) {
+                SyncDiagnostics.recordFeed(SyncDiagnostics.FeedResult.UNCHANGED)
+                feedState.update(headers, digest, stamp)
+                return ICalSyncResult.UNCHANGED
+            }
 
-    private fun removeOldBirthdayCalendar(context: SyncContext) {
-        // remove old "birthday" calendar
-        logger.debug(TAG, "Removing legacy birthday calendar")
-        try {
-            context.contentProviderClient.delete(
-                    context.contentUri(CalendarContract.Calendars.CONTENT_URI),
-                    "(${CalendarContract.Calendars.NAME} = ?)",
-                    arrayOf("birthday") // old name for the fb_birthday_calendar calendar
-            )
-        } catch (e: Exception) {
-            when (e) {
-                is android.os.RemoteException,
-                is android.database.sqlite.SQLiteException,
-                is java.lang.IllegalArgumentException -> logger.error(TAG, "removeOldBDayCalendar: $e")
-                else -> {
-                    logger.error(TAG, "removeOldBdayCalendar unhandled: $e")
-                    throw e
+            // The feed is parsed on a separate thread, while we classify the events and let the
+            // calendars diff and write them here
+            var eventCount = 0
+            val parseStart = syncContext.timings.millis(SyncStageTimings.Stage.PARSE)
+            // Events for disabled calendars are dropped by the producer, we would ignore them anyway
+            val accepts = { type: FBCalendar.CalendarType? -> type == null || calendars[type]?.isEnabled == true }
+            ICalEventProducer(syncContext, feedFile, ICalParser.DEFAULT_ENGINE, accepts).use { producer ->
+                producer.start()
+                while (true) {
+                    val event = producer.take() ?: break
+                    eventCount++
+
+                    val calendar = syncContext.timings.measure(SyncStageTimings.Stage.CLASSIFY) {
+                        calendars.getCalendarForEvent(event)
+                    } ?: return ICalSyncResult.FAILED
+                    if (calendar.isEnabled) {
+                        event.setCalendar(calendar)
+                        calendar.syncEvent(event)
+                    }
                 }
+                logger.debug(TAG) { "iCal sync done, processed $eventCount events, skipped ${producer.skipped} (${ICalParser.DEFAULT_ENGINE})" }
+                syncContext.run.eventsParsed += eventCount + producer.skipped
+                SyncDiagnostics.record(SyncDiagnostics.Metric.PARSE,
+                        syncContext.timings.millis(SyncStageTimings.Stage.PARSE) - parseStart)
             }
+            feedState.update(headers, digest, stamp)
+            return ICalSyncResult.UPDATED
+        } catch (e: IOException) {
+            logger.error(TAG, "Error reading iCal file: $e")
+            return ICalSyncResult.FAILED
+        } catch (e: InterruptedException) {
+            logger.info(TAG, "iCal sync interrupted")
+            return ICalSyncResult.FAILED
+        } finally {
+            download.discard()
         }
     }
 
@@ -454,7 +547,7 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
     }
 
     private fun createAuthNotification() {
-        mSyncContext?.logger?.debug(TAG, "Sending \"Authentication required\" notification.")
+        logger.debug(TAG, "Sending \"Authentication required\" notification.")
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
            val channel = NotificationChannel(AuthenticatorActivity.AUTH_NOTIFICATION_CHANNEL_ID,
                    context.getString(R.string.sync_ntf_needs_reauthentication_title),
@@ -491,6 +584,20 @@ class CalendarSyncAdapter(context: Context, autoInitialize: Boolean) : AbstractT
 
         private const val TAG = "SYNC"
 
+        private const val HTTP_NOT_MODIFIED = 304
+
+        // Downloads of all accounts that are syncing in parallel share this pool
+        private const val MAX_CONCURRENT_DOWNLOADS = 4
+        private val sDownloadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS) as ThreadPoolExecutor
+
+        private val sRunningSyncs = HashSet<String /* account name */>()
+
+        internal fun runningSyncs() = synchronized(sRunningSyncs) { sRunningSyncs.size }
+
+        internal fun activeDownloads() = sDownloadExecutor.activeCount
+
+        internal fun pendingDownloads() = sDownloadExecutor.queue.size
+
         fun requestSync(context: Context, account: Account?) {
             val logger = Logger.getInstance(context)
             val type = context.getString(R.string.account_type)
@@ -22,6 +22,9 @@ import android.content.Intent
 import android.os.IBinder
 import android.util.Log
 
+import java.io.FileDescriptor
+import java.io.PrintWriter
+
 class CalendarSyncService : Service() {
 
     private lateinit var mAdapter: CalendarSyncAdapter
@@ -40,6 +43,10 @@ class CalendarSyncService : Service() {
         return mAdapter.syncAdapterBinder
     }
 
+    override fun dump(fd: FileDescriptor, writer: PrintWriter, args: Array<String>) {
+        SyncDiagnostics.dump(this, writer)
+    }
+
     companion object {
         private const val TAG = "SYNC"
         private val sAdapterLock = Any()
@@ -45,12 +45,12 @@ class EventScraper {
             var conn = prepareConnection("https://mbasic.facebook.com/events/birthdays?cursor=$year-%02d-01&locale=en_US".format(month), cookies)
             val document = doRunRequest(conn, context) ?: return events
 
-            context.logger.debug("SCRAPER", "Fetched ${conn.request().url()}")
+            context.logger.debug("SCRAPER") { "Fetched ${conn.request().url()}" }
             checkRequestUrlIsValid(conn.request().url())
             val eventElements = document.select("div[role='article'] ul>li")
 
             val newEvents = eventElements.mapNotNull { FBBirthdayEvent.parse(it, context) }
-            context.logger.debug("SCRAPER", "Scraped ${newEvents.size} birthdays")
+            context.logger.debug("SCRAPER") { "Scraped ${newEvents.size} birthdays" }
             events.addAll(newEvents)
         }
 
@@ -85,7 +85,7 @@ class EventScraper {
             conn.get()
         } catch (e: HttpStatusException) {
             if (e.statusCode == 500) {
-                context.logger.debug("SCRAPER", "Error 500 while fetching ${conn.request().url()}, this is usually OK")
+                context.logger.debug("SCRAPER") { "Error 500 while fetching ${conn.request().url()}, this is usually OK" }
             } else {
                 context.logger.error("SCRAPER", "Error while fetching ${conn.request().url()}: $e")
             }
@@ -99,10 +99,10 @@ class EventScraper {
         while (true) {
             val document = doRunRequest(conn, context) ?: return events
 
-            context.logger.debug("SCRAPER", "Fetched ${conn.request().url()}")
+            context.logger.debug("SCRAPER") { "Fetched ${conn.request().url()}" }
             checkRequestUrlIsValid(conn.request().url())
             val eventElements = document.select("div[role='article']")
-            context.logger.debug("SCRAPER", "Found ${eventElements.size} event elements")
+            context.logger.debug("SCRAPER") { "Found ${eventElements.size} event elements" }
             if (eventElements?.first()?.text() == "Currently No Events") {
                 context.logger.debug("SCRAPER", "Currently no events")
                 return events
@@ -116,7 +116,7 @@ class EventScraper {
                 parsed
             }
 
-            context.logger.debug("SCRAPER", "Scraped ${newEvents.size} events")
+            context.logger.debug("SCRAPER") { "Scraped ${newEvents.size} events" }
             events.addAll(newEvents)
 
             var moreLink = document.selectFirst("#event_list_seemore>a")?.attr("href")
@@ -19,11 +19,25 @@ package cz.dvratil.fbeventsync
 
 class FBBirthdayCalendar(context: SyncContext) : FBCalendar(context, FBCalendar.CalendarType.TYPE_BIRTHDAY) {
 
-    private var mSyncedEvents =  HashSet<String>()
+    // FBID -> local ID of events from mPastLocalIds that have been synced in this run
+    private var mSyncedLocalIds = StringLongMap()
 
-    override fun doSyncEvent(event: FBEvent) {
-        super.doSyncEvent(event)
-        mSyncedEvents.add(event.eventId())
+    override fun findLocalId(uid: String): Long {
+        return if (mSyncedLocalIds.containsKey(uid)) mSyncedLocalIds.get(uid, 0) else super.findLocalId(uid)
+    }
+
+    override fun doSyncEvent(event: FBEvent, batch: Batch) {
+        super.doSyncEvent(event, batch)
+        // In birthday calendar all event are in past (they are recurrent). By moving all events
+        // we synced out of mPastLocalIds we are left with events that we did not receive in this
+        // sync run - such events represent birthdays of friends who have been unfriended since the
+        // last sync and we want those removed in finalizeSync(). The moved events can still be
+        // found by findLocalId() should the same event appear again in the feed.
+        val uid = event.eventId()
+        if (mPastLocalIds.containsKey(uid)) {
+            mSyncedLocalIds.put(uid, mPastLocalIds.get(uid, 0))
+            mPastLocalIds.remove(uid)
+        }
     }
 
     override fun finalizeSync() {
@@ -32,32 +46,9 @@ class FBBirthdayCalendar(context: SyncContext) : FBCalendar(context, FBCalendar.
         }
 
         sync()
-
-        // In birthday calendar all event are in past (they are recurrent). By removing all events
-        // we synced from mPastLocalIds we are left with events that we did not receive in this sync
-        // run - such events represent birthdays of friends who have been unfriended since the last
-        // sync and we want those removed.
-        mSyncedEvents.forEach { mPastLocalIds.remove(it) }
-        for (eventId in mPastLocalIds.values) {
-            try {
-                FBEvent.remove(mContext, eventId)
-                mSyncStats.removed += 1
-            } catch (e: Exception) {
-                when (e) {
-                    is android.os.RemoteException,
-                    is android.database.sqlite.SQLiteException -> mContext.logger.error(TAG, "FBCalendar.finalizeSync: $e")
-                    else -> {
-                        mContext.logger.error(TAG, "FBCalendar.finalizeSync: unhandled $e")
-                        throw e
-                    }
-                }
-            }
-        }
+        removeEvents(mPastLocalIds.values())
+        mSyncedLocalIds.clear()
 
         super.finalizeSync()
     }
-
-    companion object {
-        private const val TAG = "FBBirthdayCalendar"
-    }
 }
@@ -77,21 +77,14 @@ class FBBirthdayEvent: FBEvent() {
             values.put(CalendarContract.Events.TITLE, context.context.resources.getString(R.string.birthday_event_title, name))
             values.put(CalendarContract.Events.EVENT_TIMEZONE, TimeZone.getDefault().id)
 
-            if (context.preferences.fbLink()) {
+            if (context.settings.fbLink) {
                 values.put(CalendarContract.Events.DESCRIPTION, "https://www.facebook.com$uri")
             } else {
                 values.put(CalendarContract.Events.DESCRIPTION, String())
             }
 
-            val calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
             @Suppress("DEPRECATION")
-            calendar.set(calendar.get(Calendar.YEAR) - 1, date.month, date.date, 0, 0, 0)
-            calendar.set(Calendar.MILLISECOND, 0)
-            values.put(CalendarContract.Events.DTSTART, calendar.timeInMillis)
-            // Those are identical for all birthdays, so we hardcode them
-            values.put(CalendarContract.Events.ALL_DAY, 1)
-            values.put(CalendarContract.Events.RRULE, "FREQ=YEARLY")
-            values.put(CalendarContract.Events.DURATION, "P1D")
+            FBEvent.putBirthdayDate(values, date.month, date.date)
 
             fbEvent.rsvp = FBCalendar.CalendarType.TYPE_BIRTHDAY
             values.put(CalendarContract.Events.CUSTOM_APP_URI, "fb://user?id=${uri.substring(1)}")
@@ -17,53 +17,34 @@
 
 package cz.dvratil.fbeventsync
 
+import android.content.ContentProviderOperation
 import android.content.ContentValues
 import android.provider.CalendarContract
 
-import java.util.Calendar
-
-typealias FBIDLocalIDMap = HashMap<String, Long>
+import java.util.EnumMap
 
 open class FBCalendar protected constructor(protected var mContext: SyncContext,
                                             private var mType: CalendarType) {
 
     private var mEventsToSync = mutableListOf<FBEvent>()
-    protected var mPastLocalIds = FBIDLocalIDMap()
-    private var mFutureLocalIds = FBIDLocalIDMap()
+    // FBID -> local ID
+    protected var mPastLocalIds = StringLongMap()
+    private var mFutureLocalIds = StringLongMap()
+    // FBID -> fingerprint
+    private var mLocalFingerprints = StringLongMap()
+    private var mLocalReminders = LocalReminders.empty()
     private var mLocalCalendarId = -1L
     var isEnabled  = false
     protected var mSyncStats = SyncStats()
 
     private val calendarColor: Int
-        get() = when (mType) {
-                FBCalendar.CalendarType.TYPE_ATTENDING -> mContext.preferences.attendingCalendarColor()
-                FBCalendar.CalendarType.TYPE_MAYBE -> mContext.preferences.maybeAttendingCalendarColor()
-                FBCalendar.CalendarType.TYPE_NOT_REPLIED -> mContext.preferences.notRespondedCalendarColor()
-                FBCalendar.CalendarType.TYPE_DECLINED -> mContext.preferences.declinedCalendarColor()
-                FBCalendar.CalendarType.TYPE_BIRTHDAY -> mContext.preferences.birthdayCalendarColor()
-            }
+        get() = mContext.settings.calendar(mType).color
 
     val reminderIntervals: List<FBReminder>
-        get() {
-            return when (mType) {
-                FBCalendar.CalendarType.TYPE_NOT_REPLIED -> mContext.preferences.notRespondedCalendarReminders()
-                FBCalendar.CalendarType.TYPE_DECLINED -> mContext.preferences.declinedCalendarReminders()
-                FBCalendar.CalendarType.TYPE_MAYBE -> mContext.preferences.maybeAttendingCalendarReminders()
-                FBCalendar.CalendarType.TYPE_ATTENDING -> mContext.preferences.attendingCalendarReminders()
-                FBCalendar.CalendarType.TYPE_BIRTHDAY -> emptyList()
-            }
-        }
+        get() = mContext.settings.calendar(mType).reminders
 
     val allDayReminderIntervals: List<FBReminder>
-        get() {
-            return when (mType) {
-                FBCalendar.CalendarType.TYPE_NOT_REPLIED -> mContext.preferences.notRespondedCalendarAllDayReminders()
-                FBCalendar.CalendarType.TYPE_DECLINED -> mContext.preferences.declinedCalendarAllDayReminders()
-                FBCalendar.CalendarType.TYPE_MAYBE -> mContext.preferences.maybeAttendingCalendarAllDayReminders()
-                FBCalendar.CalendarType.TYPE_ATTENDING -> mContext.preferences.attendingCalendarAllDayReminders()
-                FBCalendar.CalendarType.TYPE_BIRTHDAY -> mContext.preferences.birthdayCalendarAllDayReminders()
-            }
-        }
+        get() = mContext.settings.calendar(mType).allDayReminders
 
     enum class CalendarType constructor(private val id: String) {
         TYPE_ATTENDING("fb_attending_calendar"),
@@ -79,19 +60,38 @@ open class FBCalendar protected constructor(protected var mContext: SyncContext,
         var added = 0
         var removed = 0
         var modified = 0
+        var unchanged = 0
     }
 
-    class Set : HashMap<CalendarType, FBCalendar>() {
+    class Set : EnumMap<CalendarType, FBCalendar>(CalendarType::class.java) {
         fun initialize(ctx: SyncContext) {
             clear()
-            put(CalendarType.TYPE_ATTENDING, FBCalendar(ctx, CalendarType.TYPE_ATTENDING).apply{ init() })
-            put(CalendarType.TYPE_MAYBE, FBCalendar(ctx, CalendarType.TYPE_MAYBE).apply{ init() })
-            put(CalendarType.TYPE_DECLINED, FBCalendar(ctx, CalendarType.TYPE_DECLINED).apply{ init() })
-            put(CalendarType.TYPE_NOT_REPLIED, FBCalendar(ctx, CalendarType.TYPE_NOT_REPLIED).apply{ init() })
-            put(CalendarType.TYPE_BIRTHDAY, FBBirthdayCalendar(ctx).apply{ init() })
+            val start = System.nanoTime()
+            val index = try {
+                LocalEventIndex.load(ctx)
+            } catch (e: Exception) {
+                when (e) {
+                    is android.os.RemoteException,
+                    is android.database.sqlite.SQLiteException -> {
+                        ctx.logger.error(TAG, "Failed to load local events: $e")
+                        // Let each calendar try on its own
+                        null
+                    }
+                    else -> {
+                        ctx.logger.error(TAG, "Failed to load local events: unhandled $e")
+                        throw e
+                    }
+                }
+            }
+            SyncDiagnostics.record(SyncDiagnostics.Metric.INDEX_BUILD, (System.nanoTime() - start) / 1000000)
+            put(CalendarType.TYPE_ATTENDING, FBCalendar(ctx, CalendarType.TYPE_ATTENDING).apply{ init(index) })
+            put(CalendarType.TYPE_MAYBE, FBCalendar(ctx, CalendarType.TYPE_MAYBE).apply{ init(index) })
+            put(CalendarType.TYPE_DECLINED, FBCalendar(ctx, CalendarType.TYPE_DECLINED).apply{ init(index) })
+            put(CalendarType.TYPE_NOT_REPLIED, FBCalendar(ctx, CalendarType.TYPE_NOT_REPLIED).apply{ init(index) })
+            put(CalendarType.TYPE_BIRTHDAY, FBBirthdayCalendar(ctx).apply{ init(index) })
         }
 
-        fun getCalendarForEvent(event: FBEvent) = get(event.rsvp)
+        fun getCalendarForEvent(event: FBEvent) = event.rsvp?.let { get(it) }
     }
 
     @Throws(android.os.RemoteException::class,
@@ -99,18 +99,28 @@ open class FBCalendar protected constructor(protected var mContext: SyncContext,
             NumberFormatException::class)
     protected open fun createLocalCalendar(): Long {
         val account = mContext.account
-        val values = ContentValues()
+        val values = calendarProperties()
         values.put(CalendarContract.Calendars.ACCOUNT_NAME, account.name)
         values.put(CalendarContract.Calendars.ACCOUNT_TYPE, mContext.context.getString(R.string.account_type))
         values.put(CalendarContract.Calendars.NAME, id())
-        values.put(CalendarContract.Calendars.CALENDAR_DISPLAY_NAME, name())
         values.put(CalendarContract.Calendars.CALENDAR_COLOR, calendarColor)
-        values.put(CalendarContract.Calendars.CALENDAR_ACCESS_LEVEL,
-                CalendarContract.Calendars.CAL_ACCESS_READ)
         values.put(CalendarContract.Calendars.OWNER_ACCOUNT, account.name)
         values.put(CalendarContract.Calendars.SYNC_EVENTS, 1)
         // TODO: Figure out how to get local timezone
         //values.put(CalendarContract.Calendars.CALENDAR_TIMEZONE, tz);
+
+        val calUri = mContext.contentProviderClient.insert(
+                mContext.contentUri(CalendarContract.Calendars.CONTENT_URI), values)
+        return calUri?.lastPathSegment?.toLong() ?: -1
+    }
+
+    // Properties of the local calendar that are fully determined by the app, as opposed to
+    // properties that come from the user's configuration
+    private fun calendarProperties(): ContentValues {
+        val values = ContentValues()
+        values.put(CalendarContract.Calendars.CALENDAR_DISPLAY_NAME, name())
+        values.put(CalendarContract.Calendars.CALENDAR_ACCESS_LEVEL,
+                CalendarContract.Calendars.CAL_ACCESS_READ)
         values.put(CalendarContract.Calendars.ALLOWED_REMINDERS,
                 "${CalendarContract.Reminders.METHOD_DEFAULT},${CalendarContract.Reminders.METHOD_ALERT}")
         values.put(CalendarContract.Calendars.ALLOWED_AVAILABILITY,
@@ -121,10 +131,21 @@ open class FBCalendar protected constructor(protected var mContext: SyncContext,
                 CalendarContract.Attendees.TYPE_NONE.toString())
         // +2 allows for up to 2 custom reminders set by the user
         values.put(CalendarContract.Calendars.MAX_REMINDERS, reminderIntervals.size + 2)
+        return values
+    }
 
-        val calUri = mContext.contentProviderClient.insert(
-                mContext.contentUri(CalendarContract.Calendars.CONTENT_URI), values)
-        return calUri?.lastPathSegment?.toLong() ?: -1
+    // Brings properties of a calendar created by an older version of the app up to date
+    @Throws(android.os.RemoteException::class,
+            android.database.sqlite.SQLiteException::class)
+    fun updateLocalCalendarProperties() {
+        if (mLocalCalendarId < 0) {
+            return
+        }
+        mContext.contentProviderClient.update(
+                mContext.contentUri(CalendarContract.Calendars.CONTENT_URI),
+                calendarProperties(),
+                "(${CalendarContract.Calendars._ID} = ?)",
+                arrayOf(mLocalCalendarId.toString()))
     }
 
     @Throws(android.os.RemoteException::class,
@@ -167,86 +188,57 @@ open class FBCalendar protected constructor(protected var mContext: SyncContext,
 
     @Throws(android.os.RemoteException::class,
             android.database.sqlite.SQLiteException::class)
-    protected open fun fetchLocalPastEvents(): HashMap<String /* FBID */, Long>/* local ID */ {
-        val now = Calendar.getInstance().timeInMillis.toString()
-        val yesterday = Calendar.getInstance()
-        yesterday.add(Calendar.DAY_OF_MONTH, -1)
-        return fetchLocalEvents(
-                "((${CalendarContract.Events.CALENDAR_ID} = ?) AND (" +
-                        "(allDay = 0 AND ${CalendarContract.Events.DTEND} IS NOT NULL AND ${CalendarContract.Events.DTEND} < ?) " +
-                        "OR (allDay = 1 AND ${CalendarContract.Events.DTEND} IS NOT NULL AND ${CalendarContract.Events.DTEND} < ?) " +
-                        "OR (allDay = 1 AND ${CalendarContract.Events.DTEND} IS NULL AND ${CalendarContract.Events.DTSTART} < ?)))",
-                arrayOf(mLocalCalendarId.toString(), now, now, yesterday.toString()))
-
+    protected open fun fetchLocalPastEvents(): StringLongMap /* FBID -> local ID */ {
+        return LocalEventIndex.load(mContext, mLocalCalendarId).events(mLocalCalendarId).past
     }
 
     @Throws(android.os.RemoteException::class,
             android.database.sqlite.SQLiteException::class)
-    protected open fun fetchLocalFutureEvents(): HashMap<String /* FBID */, Long>/* local ID */ {
-        val now = Calendar.getInstance().timeInMillis.toString()
-        return fetchLocalEvents(
-                "((${CalendarContract.Events.CALENDAR_ID} = ?) AND (" +
-                        "(${CalendarContract.Events.DTEND} IS NOT NULL AND ${CalendarContract.Events.DTEND} > ?)" +
-                        "OR (${CalendarContract.Events.DTEND} IS NULL AND ${CalendarContract.Events.DTSTART} >= ?)))",
-                arrayOf(mLocalCalendarId.toString(), now, now))
+    protected open fun fetchLocalFutureEvents(): StringLongMap /* FBID -> local ID */ {
+        return LocalEventIndex.load(mContext, mLocalCalendarId).events(mLocalCalendarId).future
     }
 
-    @Throws(android.os.RemoteException::class,
-            android.database.sqlite.SQLiteException::class)
-    private fun fetchLocalEvents(selectorQuery: String, selectorValues: Array<String>): HashMap<String /* FBID */, Long>/* local ID */ {
-        val cur = mContext.contentProviderClient.query(
-                mContext.contentUri(CalendarContract.Events.CONTENT_URI),
-                arrayOf(CalendarContract.Events.UID_2445, CalendarContract.Events._ID),
-                selectorQuery, selectorValues, null)
-        val localIds = HashMap<String, Long>()
-        while (cur?.moveToNext() == true) {
-            try {
-                localIds[cur.getString(0)] = cur.getLong(1)
-            } catch (e: IllegalStateException) {
-                mContext.logger.error(TAG, "IllegalStateException when reading from cursor (had ${cur.columnCount} columns)")
-                // continue
+    // When no index is given, the calendar looks up its local data on its own
+    @JvmOverloads
+    fun init(index: LocalEventIndex? = null) {
+        SyncTrace.section("FBCalendar.init") {
+            isEnabled = when (mType) {
+                FBCalendar.CalendarType.TYPE_ATTENDING,
+                FBCalendar.CalendarType.TYPE_MAYBE,
+                FBCalendar.CalendarType.TYPE_DECLINED -> mContext.settings.calendar(mType).enabled
+                FBCalendar.CalendarType.TYPE_NOT_REPLIED -> false /*mContext.settings.calendar(mType).enabled*/
+                FBCalendar.CalendarType.TYPE_BIRTHDAY -> false /*mContext.settings.calendar(mType).enabled*/
             }
-        }
-        cur?.close()
-        return localIds
-    }
-
-
-    fun init() {
-        isEnabled = when (mType) {
-            FBCalendar.CalendarType.TYPE_ATTENDING -> mContext.preferences.attendingCalendarEnabled()
-            FBCalendar.CalendarType.TYPE_MAYBE -> mContext.preferences.maybeAttendingCalendarEnabled()
-            FBCalendar.CalendarType.TYPE_DECLINED -> mContext.preferences.declinedCalendarEnabled()
-            FBCalendar.CalendarType.TYPE_NOT_REPLIED -> false /*mContext.preferences.notRespondedCalendarEnabled()*/
-            FBCalendar.CalendarType.TYPE_BIRTHDAY -> false /*mContext.preferences.birthdayCalendarEnabled()*/
-        }
 
-        mContext.logger.debug(TAG, "Calendar ${name()} is enabled? $isEnabled")
-
-        try {
-            mLocalCalendarId = findLocalCalendar()
-            if (mLocalCalendarId < 0) {
-                if (isEnabled) {
-                    mLocalCalendarId = createLocalCalendar()
-                }
-            } else {
-                if (isEnabled) {
-                    updateLocalCalendar()
-                    mPastLocalIds = fetchLocalPastEvents()
-                    mFutureLocalIds = fetchLocalFutureEvents()
+            mContext.logger.debug(TAG) { "Calendar ${name()} is enabled? $isEnabled" }
+            try {
+                mLocalCalendarId = index?.calendarId(mType.id()) ?: findLocalCalendar()
+                if (mLocalCalendarId < 0) {
+                    if (isEnabled) {
+                        mLocalCalendarId = createLocalCalendar()
+                    }
                 } else {
-                    deleteLocalCalendar()
-                    mLocalCalendarId = -1L
+                    if (isEnabled) {
+                        updateLocalCalendar()
+                        val events = (index ?: LocalEventIndex.load(mContext, mLocalCalendarId)).events(mLocalCalendarId)
+                        mPastLocalIds = events.past
+                        mFutureLocalIds = events.future
+                        mLocalFingerprints = events.fingerprints
+                        mLocalReminders = LocalReminders.load(mContext, mPastLocalIds.values() + mFutureLocalIds.values())
+                    } else {
+                        deleteLocalCalendar()
+                        mLocalCalendarId = -1L
+                    }
                 }
-            }
-        } catch (e: Exception) {
-            when (e) {
-                is android.os.RemoteException,
-                is android.database.sqlite.SQLiteException,
-                is NumberFormatException -> mContext.logger.error(TAG, "init: $e")
-                else -> {
-                    mContext.logger.error(TAG, "init: unhandled $e")
-                    throw e
+            } catch (e: Exception) {
+                when (e) {
+                    is android.os.RemoteException,
+                    is android.database.sqlite.SQLiteException,
+                    is NumberFormatException -> mContext.logger.error(TAG, "init: $e")
+                    else -> {
+                        mContext.logger.error(TAG, "init: unhandled $e")
+                        throw e
+                    }
                 }
             }
         }
@@ -279,31 +271,63 @@ open class FBCalendar protected constructor(protected var mContext: SyncContext,
         }
 
         mEventsToSync.add(event)
-        if (mEventsToSync.size > 50) {
+        if (mEventsToSync.size > MAX_EVENTS_PER_BATCH) {
             sync()
         }
     }
 
+    // Collects all provider operations for a single flush, so that they can be sent to the
+    // calendar provider in one applyBatch() call (and thus one Binder transaction and one
+    // SQLite transaction) instead of several calls per event.
+    protected inner class Batch {
+        val ops = ArrayList<ContentProviderOperation>()
+        // Each change with the function that builds its operations, so that the changes can be
+        // applied one by one when the batch as a whole fails
+        val changes = ArrayList<Pair<Change, (ArrayList<ContentProviderOperation>) -> Unit>>()
+        var unchanged = 0
+
+        fun add(change: Change, build: (ArrayList<ContentProviderOperation>) -> Unit) {
+            build(ops)
+            changes.add(Pair(change, build))
+        }
+    }
+
+    protected enum class Change {
+        ADDED,
+        MODIFIED,
+        REMOVED
+    }
+
     protected fun sync() {
         if (!isEnabled) {
             return
         }
 
-        for (event in mEventsToSync) {
-            doSyncEvent(event)
+        SyncTrace.section("FBCalendar.sync") {
+            val batch = Batch()
+            mContext.timings.measure(SyncStageTimings.Stage.DIFF) {
+                for (event in mEventsToSync) {
+                    doSyncEvent(event, batch)
+                }
+            }
+            mEventsToSync.clear()
+            SyncTrace.counter("batch ops", batch.ops.size.toLong())
+            applyBatch(batch, "sync")
         }
-        mEventsToSync.clear()
     }
 
-    protected open fun doSyncEvent(event: FBEvent) {
-        var localId: Long? = mFutureLocalIds[event.eventId()] ?: mPastLocalIds[event.eventId()]
+    protected open fun doSyncEvent(event: FBEvent, batch: Batch) {
+        val uid = event.eventId()
+        val localId = findLocalId(uid)
         try {
-            if (localId == null) {
-                event.create(mContext)
-                mSyncStats.added += 1
+            if (localId == NO_ID) {
+                batch.add(Change.ADDED) { event.buildCreateOps(mContext, it) }
+            } else if (mLocalFingerprints.containsKey(uid) && mLocalFingerprints.get(uid, 0) == event.fingerprint()) {
+                // Nothing has changed since the last sync, don't touch the event at all
+                batch.unchanged += 1
             } else {
-                event.update(mContext, localId)
-                mSyncStats.modified += 1
+                val localReminders = mLocalReminders[localId]
+                batch.add(Change.MODIFIED) { event.buildUpdateOps(mContext, localId, localReminders, it) }
             }
         } catch (e: Exception) {
             when (e) {
@@ -315,42 +339,127 @@ open class FBCalendar protected constructor(protected var mContext: SyncContext,
                 }
             }
         }
-        mFutureLocalIds.remove(event.eventId())
+        mFutureLocalIds.remove(uid)
     }
 
-    open fun finalizeSync() {
-        if (!isEnabled) {
+    // Returns the local ID of an event with the given FBID or NO_ID
+    protected open fun findLocalId(uid: String): Long {
+        val localId = mFutureLocalIds.get(uid, NO_ID)
+        return if (localId != NO_ID) localId else mPastLocalIds.get(uid, NO_ID)
+    }
+
+    protected fun removeEvents(localIds: LongArray) {
+        var batch = Batch()
+        for (localId in localIds) {
+            batch.add(Change.REMOVED) { FBEvent.buildRemoveOps(mContext, localId, it) }
+            if (batch.ops.size >= MAX_OPERATIONS_PER_BATCH) {
+                applyBatch(batch, "removeEvents")
+                batch = Batch()
+            }
+        }
+        applyBatch(batch, "removeEvents")
+    }
+
+    private fun applyBatch(batch: Batch, caller: String) {
+        mSyncStats.unchanged += batch.unchanged
+        if (batch.ops.isEmpty()) {
+            SyncDiagnostics.recordEvents(batch.unchanged, 0)
             return
         }
 
-        sync()
-        // Only delete from future events, we want to keep past events at any cost
-        val log = mContext.logger
-        for (localId in mFutureLocalIds.values) {
-            try {
-                FBEvent.remove(mContext, localId)
-                mSyncStats.removed += 1
-            } catch (e: Exception) {
-                when (e) {
-                    is android.os.RemoteException,
-                    is android.database.sqlite.SQLiteException -> log.error(TAG, "finalizeSync: $e")
-                    else -> {
-                        log.error(TAG,"finalizeSync: unhandled $e")
-                        throw e
-                    }
+        // The provider applies the whole batch in a single transaction, so one bad event would
+        // roll back all the others; in that case apply the changes one by one
+        val applied = when (apply(batch.ops, caller)) {
+            true -> batch.changes.map { it.first }
+            false -> emptyList()
+            null -> if (batch.changes.size > 1) {
+                mContext.logger.warning(TAG, "$caller: applying ${batch.changes.size} changes one by one")
+                batch.changes.filter { (_, build) ->
+                    val ops = ArrayList<ContentProviderOperation>()
+                    build(ops)
+                    apply(ops, caller) == true
+                }.map { it.first }
+            } else {
+                emptyList()
+            }
+        }
+
+        val added = applied.count { it == Change.ADDED }
+        val modified = applied.count { it == Change.MODIFIED }
+        val removed = applied.count { it == Change.REMOVED }
+        SyncDiagnostics.recordEvents(batch.unchanged, added + modified)
+        mSyncStats.added += added
+        mSyncStats.modified += modified
+        mSyncStats.removed += removed
+        val stats = mContext.syncResult.stats
+        stats.numInserts += added
+        stats.numUpdates += modified
+        stats.numDeletes += removed
+    }
+
+    // Returns true on success, null when an operation has failed (and the whole batch has been
+    // rolled back) and false when the provider could not be reached at all
+    private fun apply(ops: ArrayList<ContentProviderOperation>, caller: String): Boolean? {
+        try {
+            val start = System.nanoTime()
+            mContext.timings.measure(SyncStageTimings.Stage.APPLY) {
+                mContext.contentProviderClient.applyBatch(ops)
+            }
+            SyncDiagnostics.record(SyncDiagnostics.Metric.APPLY, (System.nanoTime() - start) / 1000000)
+            mContext.run.providerOps += ops.size
+            return true
+        } catch (e: Exception) {
+            when (e) {
+                is android.os.RemoteException -> {
+                    mContext.logger.error(TAG, "$caller: $e")
+                    return false
+                }
+                is android.database.sqlite.SQLiteException,
+                is android.content.OperationApplicationException -> {
+                    mContext.logger.error(TAG, "$caller: $e")
+                    return null
+                }
+                else -> {
+                    mContext.logger.error(TAG, "$caller: unhandled $e")
+                    throw e
                 }
             }
         }
-        mFutureLocalIds.clear()
-        mPastLocalIds.clear()
+    }
 
-        log.info(TAG, "Sync stats for ${name()}")
-        log.info(TAG, "    Events added: ${mSyncStats.added}")
-        log.info(TAG, "    Events modified: ${mSyncStats.modified}")
-        log.info(TAG, "    Events removed: ${mSyncStats.removed}")
+    open fun finalizeSync() {
+        SyncTrace.section("FBCalendar.finalizeSync") {
+            if (!isEnabled) {
+                return
+            }
+
+            sync()
+            // Only delete from future events, we want to keep past events at any cost
+            removeEvents(mFutureLocalIds.values())
+            mFutureLocalIds.clear()
+            mPastLocalIds.clear()
+            mLocalFingerprints.clear()
+            mLocalReminders.clear()
+
+            val log = mContext.logger
+            log.info(TAG, "Sync stats for ${name()}")
+            log.info(TAG, "    Events added: ${mSyncStats.added}")
+            log.info(TAG, "    Events modified: ${mSyncStats.modified}")
+            log.info(TAG, "    Events unchanged: ${mSyncStats.unchanged}")
+            log.info(TAG, "    Events removed: ${mSyncStats.removed}")
+            SyncDiagnostics.recordCalendarSync(mContext.account, name(),
+                    "added=${mSyncStats.added} modified=${mSyncStats.modified} " +
+                            "unchanged=${mSyncStats.unchanged} removed=${mSyncStats.removed}")
+        }
     }
 
     companion object {
         private const val TAG = "FBCalendar"
+
+        private const val MAX_EVENTS_PER_BATCH = 50
+        // Keep the batches well below the Binder transaction size limit
+        private const val MAX_OPERATIONS_PER_BATCH = 250
+
+        protected const val NO_ID = -1L
     }
 }
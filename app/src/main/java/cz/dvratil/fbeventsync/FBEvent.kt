@@ -17,7 +17,7 @@
 
 package cz.dvratil.fbeventsync
 
-import android.annotation.SuppressLint
+import android.content.ContentProviderOperation
 import android.content.ContentValues
 import android.provider.CalendarContract
 
@@ -52,103 +52,98 @@ open class FBEvent protected constructor() {
         return values.getAsBoolean(CalendarContract.Events.ALL_DAY)
     }
 
-    @Throws(android.os.RemoteException::class,
-            android.database.sqlite.SQLiteException::class)
-    fun create(context: SyncContext): Long {
-        val uri = context.contentProviderClient.insert(
-                context.contentUri(CalendarContract.Events.CONTENT_URI),
-                values)
-        if (uri != null && mCalendar != null) {
-            val eventId = uri.lastPathSegment!!.toLong()
-            val reminders = if (isAllDay() == true) mCalendar!!.allDayReminderIntervals else mCalendar!!.reminderIntervals
-            if (reminders.isNotEmpty()) {
-                createReminders(context, eventId, reminders)
-            }
-
-            context.syncResult.stats.numInserts++
-            return eventId
-        }
-
-        return -1
+    private fun configuredReminders(): List<FBReminder> {
+        val calendar = mCalendar ?: return emptyList()
+        return if (isAllDay() == true) calendar.allDayReminderIntervals else calendar.reminderIntervals
     }
 
-    @SuppressLint("UseSparseArrays")
-    @Throws(android.os.RemoteException::class,
-            android.database.sqlite.SQLiteException::class)
-    private fun getLocalReminders(context: SyncContext, localEventId: Long): HashMap<FBReminder, Long /* reminder ID */> {
-        val cur = context.contentProviderClient.query(
-                context.contentUri(CalendarContract.Reminders.CONTENT_URI),
-                arrayOf(CalendarContract.Reminders._ID, CalendarContract.Reminders.MINUTES),
-                "(${CalendarContract.Reminders.EVENT_ID} = ?)",
-                arrayOf(localEventId.toString()), null)
-        val localReminders = HashMap<FBReminder, Long /* reminder ID */>()
-        while (cur?.moveToNext() == true) {
-            localReminders[FBReminder(cur.getInt(1), false)] = cur.getLong(0)
+    // Stable hash of everything we write into the calendar for this event, including the reminders
+    // configured for the calendar. It is stored alongside the event, so that on the next sync we can
+    // tell whether the event has changed without touching the provider.
+    fun fingerprint(): Long {
+        var hash = FNV_OFFSET_BASIS
+        for (key in values.keySet().sorted()) {
+            if (key == FINGERPRINT_COLUMN) {
+                continue
+            }
+            hash = fnv1a(hash, key)
+            hash = fnv1a(hash, values.get(key)?.toString() ?: "")
+        }
+        for (reminder in configuredReminders().map { it.minutesOffset }.sorted()) {
+            hash = fnv1a(hash, reminder.toString())
         }
-        cur?.close()
-        return localReminders
+        return hash
     }
 
     @Throws(android.os.RemoteException::class,
-            android.database.sqlite.SQLiteException::class)
-    private fun createReminders(context: SyncContext, localEventId: Long, reminders: List<FBReminder>) {
-        val reminderValues = arrayListOf<ContentValues>()
-        for (reminder in reminders) {
-            val values = ContentValues()
-            values.put(CalendarContract.Reminders.EVENT_ID, localEventId)
-            values.put(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT)
-            values.put(CalendarContract.Reminders.MINUTES, reminder.minutesOffset)
-            reminderValues.add(values)
-        }
-
-        context.contentProviderClient.bulkInsert(
-                context.contentUri(CalendarContract.Reminders.CONTENT_URI),
-                reminderValues.toTypedArray())
+            android.database.sqlite.SQLiteException::class,
+            android.content.OperationApplicationException::class)
+    fun create(context: SyncContext): Long {
+        val ops = arrayListOf<ContentProviderOperation>()
+        buildCreateOps(context, ops)
+        val uri = context.contentProviderClient.applyBatch(ops).firstOrNull()?.uri ?: return -1
+        context.syncResult.stats.numInserts++
+        return uri.lastPathSegment!!.toLong()
     }
 
-    @Throws(android.os.RemoteException::class,
-            android.database.sqlite.SQLiteException::class)
-    private fun removeReminder(context: SyncContext, localReminderId: Long) {
-        context.contentProviderClient.delete(
-                CalendarContract.Reminders.CONTENT_URI,
-                "(${CalendarContract.Reminders._ID} = ?)",
-                arrayOf(localReminderId.toString()))
+    // Appends an insert of the event, followed by inserts of its reminders, to the batch. The
+    // reminders refer to the new event through a back-reference, since we don't know its ID yet.
+    fun buildCreateOps(context: SyncContext, ops: ArrayList<ContentProviderOperation>) {
+        val eventIdx = ops.size
+        ops.add(ContentProviderOperation.newInsert(context.contentUri(CalendarContract.Events.CONTENT_URI))
+                .withValues(values)
+                .withValue(FINGERPRINT_COLUMN, fingerprint().toString())
+                .withYieldAllowed(true)
+                .build())
+
+        for (reminder in configuredReminders()) {
+            ops.add(ContentProviderOperation.newInsert(context.contentUri(CalendarContract.Reminders.CONTENT_URI))
+                    .withValueBackReference(CalendarContract.Reminders.EVENT_ID, eventIdx)
+                    .withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT)
+                    .withValue(CalendarContract.Reminders.MINUTES, reminder.minutesOffset)
+                    .build())
+        }
     }
 
     @Throws(android.os.RemoteException::class,
             android.database.sqlite.SQLiteException::class)
-    fun update(context: SyncContext, localEventId: Long) {
+    fun buildUpdateOps(context: SyncContext, localEventId: Long, localReminders: LongArray?,
+                       ops: ArrayList<ContentProviderOperation>) {
         val values = ContentValues(this.values)
         values.remove(CalendarContract.Events._ID)
         values.remove(CalendarContract.Events.UID_2445)
         values.remove(CalendarContract.Events.CALENDAR_ID)
+        values.put(FINGERPRINT_COLUMN, fingerprint().toString())
+
+        ops.add(ContentProviderOperation.newUpdate(context.contentUri(CalendarContract.Events.CONTENT_URI))
+                .withValues(values)
+                .withSelection("(${CalendarContract.Events._ID} = ?)", arrayOf(localEventId.toString()))
+                .withYieldAllowed(true)
+                .build())
+
+        // localReminders holds (reminder ID, minutes) pairs, see LocalReminders. Reminders are
+        // compared by their offset only, the all-day flag is not stored in the provider.
+        SyncTrace.section("reminder diff") {
+            val configuredMinutes = configuredReminders().map { it.minutesOffset }.toHashSet()
+            val presentMinutes = HashSet<Int>()
+            if (localReminders != null) {
+                for (i in 0 until localReminders.size step 2) {
+                    val minutes = localReminders[i + 1].toInt()
+                    if (minutes in configuredMinutes && presentMinutes.add(minutes)) {
+                        continue
+                    }
+                    ops.add(ContentProviderOperation.newDelete(context.contentUri(CalendarContract.Reminders.CONTENT_URI))
+                            .withSelection("(${CalendarContract.Reminders._ID} = ?)", arrayOf(localReminders[i].toString()))
+                            .build())
+                }
+            }
 
-        context.contentProviderClient.update(
-                context.contentUri(CalendarContract.Events.CONTENT_URI),
-                values,
-                "(${CalendarContract.Events._ID} = ?)",
-                arrayOf(localEventId.toString()))
-
-        val reminders = getLocalReminders(context, localEventId)
-        val localReminderSet = reminders.keys
-        val configuredReminders = if (isAllDay() == true) mCalendar!!.allDayReminderIntervals else mCalendar!!.reminderIntervals
-
-        // Silly Java can't even subtract Sets...*sigh*
-        val toAdd = HashSet<FBReminder>()
-        toAdd.addAll(configuredReminders)
-        toAdd.removeAll(localReminderSet)
-
-        val toRemove = HashSet<FBReminder>()
-        toRemove.addAll(localReminderSet)
-        toRemove.removeAll(configuredReminders)
-
-        if (!toAdd.isEmpty()) {
-            createReminders(context, localEventId, toAdd.toList())
-        }
-        toRemove.forEach {
-            val r: Long? = reminders[it]
-            if (r != null) {
-                removeReminder(context, r)
+            configuredMinutes.filter { it !in presentMinutes }.forEach {
+                ops.add(ContentProviderOperation.newInsert(context.contentUri(CalendarContract.Reminders.CONTENT_URI))
+                        .withValue(CalendarContract.Reminders.EVENT_ID, localEventId)
+                        .withValue(CalendarContract.Reminders.METHOD, CalendarContract.Reminders.METHOD_ALERT)
+                        .withValue(CalendarContract.Reminders.MINUTES, it)
+                        .build())
             }
         }
     }
@@ -157,6 +152,22 @@ open class FBEvent protected constructor() {
 
         private const val TAG = "FBEvent"
 
+        const val FINGERPRINT_COLUMN = CalendarContract.Events.SYNC_DATA1
+
+        const val BIRTHDAY_ANCHOR_YEAR = 2016
+
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL // 0xcbf29ce484222325
+        private const val FNV_PRIME = 0x100000001b3L
+
+        private fun fnv1a(hash: Long, str: String): Long {
+            var h = hash
+            for (c in str) {
+                h = (h xor c.toLong()) * FNV_PRIME
+            }
+            // Separator, so that ("ab", "c") and ("a", "bc") don't collide
+            return (h xor 0xffffL) * FNV_PRIME
+        }
+
         @Throws(java.text.ParseException::class)
         fun parseDateTime(dt: String): Long {
             val format: SimpleDateFormat
@@ -402,7 +413,7 @@ open class FBEvent protected constructor() {
             val location = detail.child(1)?.text() ?: return null
             values.put(CalendarContract.Events.EVENT_LOCATION, location)
 
-            if (context.preferences.fbLink()) {
+            if (context.settings.fbLink) {
                 values.put(CalendarContract.Events.DESCRIPTION, "https://www.facebook.com/$uid")
             }
 
@@ -428,10 +439,51 @@ open class FBEvent protected constructor() {
         }
 
         fun parse(vevent: VEvent, context: SyncContext): FBEvent {
+            val record = BiweeklyICalParser.toRecord(vevent)
+                    ?: throw IllegalArgumentException("VEVENT without UID or DTSTART")
+            return parse(record, context)
+        }
+
+        // Facebook only lists the "next" birthdays, which means birthdays disappear from the listing
+        // the day after they pass. Many users dislike that (and I understand why), so birthdays are
+        // stored as yearly recurring all-day events starting in a fixed year. The anchor must not
+        // depend on the current date, otherwise every birthday would get rewritten on New Year.
+        // BIRTHDAY_ANCHOR_YEAR is a leap year so that February 29 exists; in other years such
+        // birthdays recur on the last day of February.
+        fun putBirthdayDate(values: ContentValues, month: Int, day: Int) {
+            val calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
+            calendar.clear()
+            calendar.set(BIRTHDAY_ANCHOR_YEAR, month, day, 0, 0, 0)
+            values.put(CalendarContract.Events.DTSTART, calendar.timeInMillis)
+            // Those are identical for all birthdays, so we hardcode them
+            values.put(CalendarContract.Events.ALL_DAY, 1)
+            if (month == Calendar.FEBRUARY && day == 29) {
+                values.put(CalendarContract.Events.RRULE, "FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=-1")
+            } else {
+                values.put(CalendarContract.Events.RRULE, "FREQ=YEARLY")
+            }
+            values.put(CalendarContract.Events.DURATION, "P1D")
+        }
+
+        // Cheap enough to be checked before the event itself is parsed
+        fun rsvp(record: ICalEventRecord): FBCalendar.CalendarType? {
+            if (!record.uid.startsWith("e")) {
+                return FBCalendar.CalendarType.TYPE_BIRTHDAY
+            }
+            return when (record.partStat) {
+                "ACCEPTED" -> FBCalendar.CalendarType.TYPE_ATTENDING
+                "TENTATIVE" -> FBCalendar.CalendarType.TYPE_MAYBE
+                "DECLINED" -> FBCalendar.CalendarType.TYPE_DECLINED
+                "NEEDS-ACTION" -> FBCalendar.CalendarType.TYPE_NOT_REPLIED
+                else -> null
+            }
+        }
+
+        fun parse(record: ICalEventRecord, context: SyncContext): FBEvent {
             val fbEvent = FBEvent()
             val values = fbEvent.values
 
-            var uid = vevent.uid.value
+            var uid = record.uid
             val id = uid.substring(1, uid.indexOf("@"))
             var isBirthday = true
             if (uid.startsWith("e")) { // events
@@ -440,45 +492,31 @@ open class FBEvent protected constructor() {
             }
 
             values.put(CalendarContract.Events.UID_2445, uid)
-            values.put(CalendarContract.Events.TITLE, vevent.summary.value)
-            val organizer = vevent.organizer
-            if (organizer != null) {
-                values.put(CalendarContract.Events.ORGANIZER, organizer.commonName)
+            values.put(CalendarContract.Events.TITLE, record.summary)
+            if (record.organizer != null) {
+                values.put(CalendarContract.Events.ORGANIZER, record.organizer)
             }
-            val location = vevent.location
-            if (location != null) {
-                values.put(CalendarContract.Events.EVENT_LOCATION, location.value)
+            if (record.location != null) {
+                values.put(CalendarContract.Events.EVENT_LOCATION, record.location)
             }
             values.put(CalendarContract.Events.EVENT_TIMEZONE, TimeZone.getDefault().id)
 
             if (isBirthday) {
-                if (context.preferences.fbLink()) {
+                if (context.settings.fbLink) {
                     values.put(CalendarContract.Events.DESCRIPTION, "https://www.facebook.com/$id")
                 } else {
                     values.put(CalendarContract.Events.DESCRIPTION, String())
                 }
-                val date = vevent.dateStart.value
-                val calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
-                // HACK: Facebook only lists the "next" birthdays, which means birthdays disappear from
-                // the listing the day after it they pass. Many users dislike that (and I understand why)
-                // so we hack around by always setting the year as current year - 1 and setting yearly
-                // recurrence so that they don't disappear from the calendar
+                val date = record.start
                 @Suppress("DEPRECATION")
-                calendar.set(calendar.get(Calendar.YEAR) - 1, date.month, date.date, 0, 0, 0)
-                calendar.set(Calendar.MILLISECOND, 0)
-                values.put(CalendarContract.Events.DTSTART, calendar.timeInMillis)
-                // Those are identical for all birthdays, so we hardcode them
-                values.put(CalendarContract.Events.ALL_DAY, 1)
-                values.put(CalendarContract.Events.RRULE, "FREQ=YEARLY")
-                values.put(CalendarContract.Events.DURATION, "P1D")
+                putBirthdayDate(values, date.month, date.date)
 
                 fbEvent.rsvp = FBCalendar.CalendarType.TYPE_BIRTHDAY
                 values.put(CalendarContract.Events.CUSTOM_APP_URI, "fb://user?id=$id")
             } else {
-                val desc = vevent.description
-                if (desc != null) {
-                    var descStr = desc.value
-                    if (!context.preferences.fbLink()) {
+                if (record.description != null) {
+                    var descStr = record.description
+                    if (!context.settings.fbLink) {
                         val pos = descStr.lastIndexOf('\n')
                         if (pos > -1) {
                             descStr = descStr.substring(0, pos)
@@ -487,22 +525,14 @@ open class FBEvent protected constructor() {
                     values.put(CalendarContract.Events.DESCRIPTION, descStr)
                 }
 
-                val start = vevent.dateStart
-                values.put(CalendarContract.Events.DTSTART, start.value.time)
-                val end = vevent.dateEnd
-                if (end != null) {
-                    values.put(CalendarContract.Events.DTEND, end.value.time)
+                values.put(CalendarContract.Events.DTSTART, record.start.time)
+                if (record.end != null) {
+                    values.put(CalendarContract.Events.DTEND, record.end.time)
                 }
 
-                val prop = vevent.getExperimentalProperty("PARTSTAT")
-                if (prop != null) {
-                    when (prop.value) {
-                        "ACCEPTED" -> fbEvent.rsvp = FBCalendar.CalendarType.TYPE_ATTENDING
-                        "TENTATIVE" -> fbEvent.rsvp = FBCalendar.CalendarType.TYPE_MAYBE
-                        "DECLINED" -> fbEvent.rsvp = FBCalendar.CalendarType.TYPE_DECLINED
-                        "NEEDS-ACTION" -> fbEvent.rsvp = FBCalendar.CalendarType.TYPE_NOT_REPLIED
-                        else -> context.logger.warning(TAG, "Unknown RSVP status '${prop.value}'")
-                    }
+                fbEvent.rsvp = rsvp(record)
+                if (fbEvent.rsvp == null && record.partStat != null) {
+                    context.logger.warning(TAG, "Unknown RSVP status '${record.partStat}'")
                 }
 
                 values.put(CalendarContract.Events.CUSTOM_APP_URI, "fb://event?id=$id")
@@ -511,13 +541,11 @@ open class FBEvent protected constructor() {
             return fbEvent
         }
 
-        @Throws(android.os.RemoteException::class,
-                android.database.sqlite.SQLiteException::class)
-        fun remove(context: SyncContext, localEventId: Long) {
-            context.contentProviderClient.delete(
-                    context.contentUri(CalendarContract.Events.CONTENT_URI),
-                    "(${CalendarContract.Events._ID} = ?)",
-                    arrayOf(localEventId.toString()))
+        fun buildRemoveOps(context: SyncContext, localEventId: Long, ops: ArrayList<ContentProviderOperation>) {
+            ops.add(ContentProviderOperation.newDelete(context.contentUri(CalendarContract.Events.CONTENT_URI))
+                    .withSelection("(${CalendarContract.Events._ID} = ?)", arrayOf(localEventId.toString()))
+                    .withYieldAllowed(true)
+                    .build())
         }
     }
 }
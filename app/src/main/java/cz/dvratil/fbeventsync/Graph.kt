@@ -19,11 +19,11 @@ package cz.dvratil.fbeventsync
 
 import android.content.Context
 
-import com.loopj.android.http.AsyncHttpClient
 import com.loopj.android.http.AsyncHttpResponseHandler
 import com.loopj.android.http.RequestHandle
 import com.loopj.android.http.RequestParams
-import com.loopj.android.http.SyncHttpClient
+
+import cz.msebera.android.httpclient.Header
 
 object Graph {
 
@@ -39,33 +39,29 @@ object Graph {
             add(ACCESS_TOKEN_PARAM, accessToken)
             add(FIELDS_PARAM, "name")
         }
-        return AsyncHttpClient().get(BASE_URL + "/me", params, handler)
+        return HttpTransport.asyncClient().get(BASE_URL + "/me", params, handler)
     }
 
     fun mePicture(accessToken: String, handler: AsyncHttpResponseHandler): RequestHandle {
         var params = RequestParams().apply {
             add(ACCESS_TOKEN_PARAM, accessToken)
         }
-        return AsyncHttpClient().get(BASE_URL + "/me/picture", params, handler)
+        return HttpTransport.asyncClient().get(BASE_URL + "/me/picture", params, handler)
     }
 
     fun refreshTokens(context: Context, scopes: String, handler: AsyncHttpResponseHandler): RequestHandle {
-        val client = SyncHttpClient()
         val params = RequestParams().apply {
             put("client_id", context.getString(R.string.facebook_app_id))
             put("redirect_uri", "https://www.facebook.com/connect/login_success.html")
             put("response_type", "token")
             put("scopes", scopes)
         }
-        return client.get("https://www.facebook.com/v2.9/dialog/oauth", params, handler)
+        return HttpTransport.syncClient().get("https://www.facebook.com/v2.9/dialog/oauth", params, handler)
     }
 
-    fun fetchBirthdayICal(birthdayICalUri: String, handler: AsyncHttpResponseHandler): RequestHandle {
-        val client = SyncHttpClient()
-        client.connectTimeout = 30000 // 30 seconds
-        client.responseTimeout = 60000 // 60 seconds
-        // Pretend we are cURL, so that Facebook does not redirect us to facebook.com/unsupportedbrowser
-        client.setUserAgent("curl/7.55.1")
-        return client.get(birthdayICalUri, handler)
+    fun fetchBirthdayICal(birthdayICalUri: String, headers: Array<Header>, handler: AsyncHttpResponseHandler): RequestHandle {
+        return SyncTrace.section("Graph.fetchBirthdayICal") {
+            HttpTransport.syncClient(HttpTransport.FEED_CONFIG).get(null, birthdayICalUri, headers, null, handler)
+        }
     }
 }
@@ -0,0 +1,204 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.os.SystemClock
+
+import com.loopj.android.http.AsyncHttpClient
+import com.loopj.android.http.SyncHttpClient
+
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.PushbackInputStream
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+
+import cz.msebera.android.httpclient.HttpEntity
+import cz.msebera.android.httpclient.HttpRequestInterceptor
+import cz.msebera.android.httpclient.HttpResponseInterceptor
+import cz.msebera.android.httpclient.entity.HttpEntityWrapper
+import cz.msebera.android.httpclient.impl.client.DefaultHttpClient
+
+// Process-wide HTTP clients. Each client owns a pool of keep-alive connections, so sharing them
+// means that requests to the same host (e.g. the events and birthdays feeds) reuse an already
+// established TLS connection instead of doing a new handshake for every request.
+object HttpTransport {
+
+    data class Config(val connectTimeout: Int = DEFAULT_CONNECT_TIMEOUT,
+                      val responseTimeout: Int = DEFAULT_RESPONSE_TIMEOUT,
+                      val userAgent: String? = null)
+
+    class RequestRecord(val uri: String,
+                        val status: Int,
+                        val latencyMs: Long,
+                        val bytes: Long)
+
+    // Counters for all requests made through the transport since the process has started
+    object Stats {
+        val requests = AtomicLong()
+        val bytesReceived = AtomicLong()
+        val totalLatencyMs = AtomicLong()
+        private val mRecent = ArrayList<RequestRecord>()
+
+        val recent: List<RequestRecord>
+            get() = synchronized(mRecent) { ArrayList(mRecent) }
+
+        internal fun record(record: RequestRecord) {
+            requests.incrementAndGet()
+            bytesReceived.addAndGet(record.bytes)
+            totalLatencyMs.addAndGet(record.latencyMs)
+            SyncDiagnostics.record(SyncDiagnostics.Metric.HTTP_FETCH, record.latencyMs)
+            synchronized(mRecent) {
+                if (mRecent.size >= MAX_RECENT_REQUESTS) {
+                    mRecent.removeAt(0)
+                }
+                mRecent.add(record)
+            }
+        }
+    }
+
+    private const val DEFAULT_CONNECT_TIMEOUT = 10000 // 10 seconds
+    private const val DEFAULT_RESPONSE_TIMEOUT = 10000 // 10 seconds
+    private const val MAX_RECENT_REQUESTS = 20
+
+    private const val ATTR_REQUEST_START = "cz.dvratil.fbeventsync.request_start"
+    private const val ATTR_REQUEST_URI = "cz.dvratil.fbeventsync.request_uri"
+
+    // Facebook serves the iCal feeds slowly, so give them more time
+    val FEED_CONFIG = Config(connectTimeout = 30000, responseTimeout = 60000,
+                             // Pretend we are cURL, so that Facebook does not redirect us to facebook.com/unsupportedbrowser
+                             userAgent = "curl/7.55.1")
+
+    private val mSyncClients = HashMap<Config, SyncHttpClient>()
+    private val mAsyncClients = HashMap<Config, AsyncHttpClient>()
+
+    // Client that runs requests on the calling thread
+    fun syncClient(config: Config = Config()): SyncHttpClient {
+        synchronized(mSyncClients) {
+            return mSyncClients.getOrPut(config) { configure(SyncHttpClient(), config) }
+        }
+    }
+
+    // Client that runs requests on its own thread pool
+    fun asyncClient(config: Config = Config()): AsyncHttpClient {
+        synchronized(mAsyncClients) {
+            return mAsyncClients.getOrPut(config) { configure(AsyncHttpClient(), config) }
+        }
+    }
+
+    private fun <T : AsyncHttpClient> configure(client: T, config: Config): T {
+        client.connectTimeout = config.connectTimeout
+        client.responseTimeout = config.responseTimeout
+        if (config.userAgent != null) {
+            client.setUserAgent(config.userAgent)
+        }
+        // AsyncHttpClient only asks for (and decodes) gzip on its own
+        client.addHeader(AsyncHttpClient.HEADER_ACCEPT_ENCODING, "gzip, deflate")
+
+        val httpClient = client.httpClient as DefaultHttpClient
+        // Installed first, so that we see the request as early as possible and count the bytes
+        // before they get decompressed
+        httpClient.addRequestInterceptor(HttpRequestInterceptor { request, context ->
+            context.setAttribute(ATTR_REQUEST_START, SystemClock.elapsedRealtime())
+            context.setAttribute(ATTR_REQUEST_URI, request.requestLine.uri)
+        }, 0)
+        httpClient.addResponseInterceptor(HttpResponseInterceptor { response, context ->
+            val start = context.getAttribute(ATTR_REQUEST_START) as? Long ?: return@HttpResponseInterceptor
+            val uri = sanitizeUri(context.getAttribute(ATTR_REQUEST_URI) as? String ?: "")
+            val status = response.statusLine.statusCode
+            val entity = response.entity
+            if (entity == null) {
+                Stats.record(RequestRecord(uri, status, SystemClock.elapsedRealtime() - start, 0))
+            } else {
+                response.entity = CountingEntity(entity) { bytes ->
+                    Stats.record(RequestRecord(uri, status, SystemClock.elapsedRealtime() - start, bytes))
+                }
+            }
+        }, 0)
+        httpClient.addResponseInterceptor(HttpResponseInterceptor { response, _ ->
+            val entity = response.entity ?: return@HttpResponseInterceptor
+            if (entity.contentEncoding?.elements?.any { it.name.equals("deflate", true) } == true) {
+                response.entity = DeflateEntity(entity)
+            }
+        })
+        return client
+    }
+
+    // Drop the query, it contains the iCal keys and access tokens
+    private fun sanitizeUri(uri: String): String {
+        val pos = uri.indexOf('?')
+        return if (pos < 0) uri else uri.substring(0, pos)
+    }
+
+    // Counts the raw bytes of the response body and reports them once the body has been consumed
+    private class CountingEntity(entity: HttpEntity, private val mOnDone: (Long) -> Unit) : HttpEntityWrapper(entity) {
+
+        @Throws(IOException::class)
+        override fun getContent(): InputStream = object : FilterInputStream(wrappedEntity.content) {
+            private var mBytes = 0L
+            private var mDone = false
+
+            override fun read(): Int {
+                val b = super.read()
+                if (b < 0) done() else mBytes++
+                return b
+            }
+
+            override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+                val read = super.read(buffer, offset, length)
+                if (read < 0) done() else mBytes += read
+                return read
+            }
+
+            override fun close() {
+                done()
+                super.close()
+            }
+
+            private fun done() {
+                if (!mDone) {
+                    mDone = true
+                    mOnDone(mBytes)
+                }
+            }
+        }
+    }
+
+    // "deflate" is supposed to be zlib-wrapped, but some servers send raw deflate data, so we
+    // check the zlib header before decoding
+    private class DeflateEntity(entity: HttpEntity) : HttpEntityWrapper(entity) {
+
+        @Throws(IOException::class)
+        override fun getContent(): InputStream {
+            val input = PushbackInputStream(wrappedEntity.content, 2)
+            val header = ByteArray(2)
+            val read = input.read(header)
+            if (read > 0) {
+                input.unread(header, 0, read)
+            }
+            val cmf = header[0].toInt() and 0xFF
+            val flg = header[1].toInt() and 0xFF
+            val zlib = read == 2 && (cmf and 0x0F) == 8 && ((cmf shl 8) or flg) % 31 == 0
+            return InflaterInputStream(input, Inflater(!zlib))
+        }
+
+        override fun getContentLength() = -1L
+    }
+}
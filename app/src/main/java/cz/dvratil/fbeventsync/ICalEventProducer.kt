@@ -0,0 +1,118 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import java.io.Closeable
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.util.concurrent.ArrayBlockingQueue
+
+// Parse stage of the sync pipeline: parses the feed on its own thread and hands the events over
+// through a bounded queue, so that parsing of later events overlaps with the database writes of
+// the earlier ones, while memory usage stays bounded when the writes are slower.
+// Events for which mAccepts returns false (because their calendar is disabled) are dropped before
+// they get parsed any further.
+class ICalEventProducer(private val mSyncContext: SyncContext,
+                        private val mFeedFile: File,
+                        private val mEngine: ICalParser.Engine,
+                        private val mAccepts: (FBCalendar.CalendarType?) -> Boolean) : Closeable {
+
+    // event is null for the end of the feed, error is set when parsing has failed
+    private class Item(val event: FBEvent?, val error: IOException? = null)
+
+    private val mQueue = ArrayBlockingQueue<Item>(QUEUE_CAPACITY)
+    private val mThread = Thread({ produce() }, "ical-parser")
+
+    @Volatile
+    var skipped = 0
+        private set
+
+    val queueDepth get() = mQueue.size
+
+    fun start() {
+        SyncDiagnostics.producerStarted(this)
+        mThread.start()
+    }
+
+    // Returns the next parsed event, or null when the whole feed has been read. Any error from
+    // the parser thread is rethrown as an IOException.
+    @Throws(IOException::class, InterruptedException::class)
+    fun take(): FBEvent? {
+        val item = mQueue.take()
+        item.error?.let { throw it }
+        return item.event
+    }
+
+    private fun produce() {
+        val timings = mSyncContext.timings
+        SyncTrace.begin("ical-parse")
+        try {
+            ICalParser.create(mEngine, FileInputStream(mFeedFile)).use { parser ->
+                while (true) {
+                    if (Thread.currentThread().isInterrupted) {
+                        throw InterruptedException()
+                    }
+                    val record = timings.measure(SyncStageTimings.Stage.PARSE) { parser.next() } ?: break
+                    if (!mAccepts(FBEvent.rsvp(record))) {
+                        skipped++
+                        continue
+                    }
+                    val event = timings.measure(SyncStageTimings.Stage.PARSE) { FBEvent.parse(record, mSyncContext) }
+                    mQueue.put(Item(event))
+                    SyncTrace.counter("parser queue", mQueue.size.toLong())
+                }
+            }
+            mQueue.put(Item(null))
+        } catch (e: InterruptedException) {
+            // The consumer has gone away
+        } catch (e: IOException) {
+            mQueue.clear()
+            mQueue.offer(Item(null, e))
+        } catch (e: Exception) {
+            // A malformed event must fail this feed only, not the whole sync
+            mQueue.clear()
+            mQueue.offer(Item(null, IOException("Error parsing iCal feed: $e", e)))
+        } finally {
+            SyncTrace.end()
+        }
+    }
+
+    override fun close() {
+        mThread.interrupt()
+        // The caller deletes the feed file once we are closed, so wait for the parser to stop
+        // reading it. Putting into the queue is interruptible, so this doesn't take long.
+        var interrupted = false
+        while (true) {
+            try {
+                mThread.join()
+                break
+            } catch (e: InterruptedException) {
+                interrupted = true
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt()
+        }
+        SyncDiagnostics.producerFinished(this)
+    }
+
+    companion object {
+        const val QUEUE_CAPACITY = 64
+    }
+}
@@ -0,0 +1,86 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import java.io.BufferedReader
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+
+import biweekly.Biweekly
+import biweekly.component.VEvent
+
+// Reads an iCalendar stream one VEVENT at a time. Instead of building the object graph for the
+// entire calendar, we cut the stream at the component boundaries and let Biweekly parse just a
+// single event, so memory usage does not grow with the size of the feed.
+class ICalEventReader(input: InputStream) : Closeable {
+
+    private val mReader = BufferedReader(InputStreamReader(input, Charsets.UTF_8))
+    // VTIMEZONE definitions are prepended to every event so that TZID references resolve
+    private val mTimezones = StringBuilder()
+
+    @Throws(IOException::class)
+    fun next(): VEvent? {
+        var line = mReader.readLine()
+        while (line != null) {
+            when {
+                line.equals(BEGIN_VEVENT, true) -> return parseEvent(readComponent(line, END_VEVENT))
+                line.equals(BEGIN_VTIMEZONE, true) -> mTimezones.append(readComponent(line, END_VTIMEZONE))
+            }
+            line = mReader.readLine()
+        }
+        return null
+    }
+
+    @Throws(IOException::class)
+    private fun readComponent(begin: String, end: String): String {
+        val component = StringBuilder(begin).append(CRLF)
+        var line = mReader.readLine()
+        while (line != null) {
+            component.append(line).append(CRLF)
+            if (line.equals(end, true)) {
+                break
+            }
+            line = mReader.readLine()
+        }
+        return component.toString()
+    }
+
+    private fun parseEvent(event: String): VEvent? {
+        val ical = StringBuilder(event.length + mTimezones.length + 64)
+                .append("BEGIN:VCALENDAR").append(CRLF)
+                .append("VERSION:2.0").append(CRLF)
+                .append(mTimezones)
+                .append(event)
+                .append("END:VCALENDAR").append(CRLF)
+        return Biweekly.parse(ical.toString()).first()?.events?.firstOrNull()
+    }
+
+    override fun close() {
+        mReader.close()
+    }
+
+    companion object {
+        private const val CRLF = "\r\n"
+        private const val BEGIN_VEVENT = "BEGIN:VEVENT"
+        private const val END_VEVENT = "END:VEVENT"
+        private const val BEGIN_VTIMEZONE = "BEGIN:VTIMEZONE"
+        private const val END_VTIMEZONE = "END:VTIMEZONE"
+    }
+}
@@ -0,0 +1,131 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import com.loopj.android.http.AsyncHttpResponseHandler
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+import cz.msebera.android.httpclient.Header
+import cz.msebera.android.httpclient.HttpResponse
+
+// Response handler that streams a successful response body into a spool file instead of buffering
+// it in memory, computing the digest of the content on the way. The feed can then be parsed event
+// by event straight from the file.
+class ICalFeedDownload(private val mSpoolDir: File) : AsyncHttpResponseHandler() {
+
+    var statusCode = 0
+        private set
+    var headers: Array<Header> = emptyArray()
+        private set
+    var feedFile: File? = null
+        private set
+    var digest: String? = null
+        private set
+    var errorBody: String? = null
+        private set
+    var error: Throwable? = null
+        private set
+
+    fun isSuccessful() = feedFile != null && statusCode in 200..299
+
+    private var mDiscarded = false
+
+    // May be called from another thread while the download is still running, the file is then
+    // removed as soon as the download finishes
+    fun discard() {
+        synchronized(this) {
+            mDiscarded = true
+            feedFile?.delete()
+            feedFile = null
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun sendResponseMessage(response: HttpResponse) {
+        if (Thread.currentThread().isInterrupted) {
+            return
+        }
+
+        val status = response.statusLine
+        val entity = response.entity
+        if (status.statusCode >= 300 || entity == null) {
+            // Error responses are small, let the default implementation buffer them
+            super.sendResponseMessage(response)
+            return
+        }
+
+        // In case this is a retry of a failed request
+        synchronized(this) {
+            feedFile?.delete()
+            feedFile = null
+        }
+        val file = File.createTempFile("ical", ".ics", mSpoolDir)
+        val md = ICalFeedState.newDigest()
+        try {
+            entity.content.use { input ->
+                FileOutputStream(file).use { output ->
+                    val buffer = ByteArray(BUFFER_SIZE)
+                    var read = input.read(buffer)
+                    while (read >= 0) {
+                        output.write(buffer, 0, read)
+                        md.update(buffer, 0, read)
+                        read = input.read(buffer)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            file.delete()
+            throw e
+        }
+
+        synchronized(this) {
+            if (mDiscarded) {
+                file.delete()
+                return
+            }
+            feedFile = file
+        }
+        digest = ICalFeedState.digestToString(md)
+        if (!Thread.currentThread().isInterrupted) {
+            sendSuccessMessage(status.statusCode, response.allHeaders, null)
+        }
+    }
+
+    override fun onSuccess(statusCode: Int, headers: Array<Header>?, responseBody: ByteArray?) {
+        this.statusCode = statusCode
+        this.headers = headers ?: emptyArray()
+    }
+
+    override fun onFailure(statusCode: Int, headers: Array<Header>?, responseBody: ByteArray?, error: Throwable?) {
+        synchronized(this) {
+            feedFile?.delete()
+            feedFile = null
+        }
+        this.statusCode = statusCode
+        this.headers = headers ?: emptyArray()
+        this.errorBody = responseBody?.let { String(it) }
+        this.error = error
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 16 * 1024
+    }
+}
@@ -0,0 +1,104 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.accounts.Account
+import android.accounts.AccountManager
+import android.content.Context
+
+import java.security.MessageDigest
+
+import cz.msebera.android.httpclient.Header
+import cz.msebera.android.httpclient.message.BasicHeader
+
+// Remembers what we got from an iCal feed the last time it was fully synced, so that we can ask
+// the server whether it has changed (If-None-Match, If-Modified-Since) and detect byte-identical
+// responses without parsing them. The state is stored per account in the AccountManager.
+class ICalFeedState private constructor(private val mContext: Context,
+                                        private val mAccount: Account,
+                                        private val mFeed: String) {
+
+    var etag: String? = null
+        private set
+    var lastModified: String? = null
+        private set
+    var digest: String? = null
+        private set
+    var configStamp: String? = null
+        private set
+
+    // Validators are only meaningful if the feed was synced into the same calendars with the same
+    // configuration, otherwise we must fetch and apply the whole feed again.
+    fun isValidFor(stamp: String) = configStamp == stamp
+
+    fun conditionalHeaders(stamp: String): Array<Header> {
+        if (!isValidFor(stamp)) {
+            return emptyArray()
+        }
+        val headers = arrayListOf<Header>()
+        etag?.let { headers.add(BasicHeader("If-None-Match", it)) }
+        lastModified?.let { headers.add(BasicHeader("If-Modified-Since", it)) }
+        return headers.toTypedArray()
+    }
+
+    fun isUnchanged(stamp: String, bodyDigest: String) = isValidFor(stamp) && digest == bodyDigest
+
+    fun update(headers: Array<Header>?, bodyDigest: String, stamp: String) {
+        etag = headers?.firstOrNull { it.name.equals("ETag", true) }?.value
+        lastModified = headers?.firstOrNull { it.name.equals("Last-Modified", true) }?.value
+        digest = bodyDigest
+        configStamp = stamp
+    }
+
+    fun save() {
+        val mgr = AccountManager.get(mContext)
+        mgr.setUserData(mAccount, key(ETAG), etag)
+        mgr.setUserData(mAccount, key(LAST_MODIFIED), lastModified)
+        mgr.setUserData(mAccount, key(DIGEST), digest)
+        mgr.setUserData(mAccount, key(CONFIG_STAMP), configStamp)
+    }
+
+    private fun load() {
+        val mgr = AccountManager.get(mContext)
+        etag = mgr.getUserData(mAccount, key(ETAG))
+        lastModified = mgr.getUserData(mAccount, key(LAST_MODIFIED))
+        digest = mgr.getUserData(mAccount, key(DIGEST))
+        configStamp = mgr.getUserData(mAccount, key(CONFIG_STAMP))
+    }
+
+    private fun key(name: String) = "ical_${mFeed}_$name"
+
+    companion object {
+        private const val ETAG = "etag"
+        private const val LAST_MODIFIED = "last_modified"
+        private const val DIGEST = "digest"
+        private const val CONFIG_STAMP = "config_stamp"
+
+        fun load(context: Context, account: Account, feed: String): ICalFeedState {
+            return ICalFeedState(context, account, feed).apply { load() }
+        }
+
+        fun newDigest(): MessageDigest = MessageDigest.getInstance("SHA-1")
+
+        fun digestToString(md: MessageDigest) = md.digest().joinToString("") { "%02x".format(it) }
+
+        fun digest(data: ByteArray): String {
+            return digestToString(newDigest().apply { update(data) })
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.util.Date
+
+import biweekly.component.VEvent
+
+// The subset of a VEVENT that we actually care about
+data class ICalEventRecord(val uid: String,
+                           val summary: String?,
+                           val organizer: String?,
+                           val location: String?,
+                           val description: String?,
+                           val start: Date,
+                           val end: Date?,
+                           val partStat: String?)
+
+interface ICalParser : Closeable {
+
+    enum class Engine {
+        BIWEEKLY,
+        SCANNER
+    }
+
+    // Returns the next event from the feed, or null when there are no more events
+    @Throws(IOException::class)
+    fun next(): ICalEventRecord?
+
+    companion object {
+        val DEFAULT_ENGINE = Engine.SCANNER
+
+        fun create(engine: Engine, input: InputStream): ICalParser {
+            return when (engine) {
+                Engine.BIWEEKLY -> BiweeklyICalParser(input)
+                Engine.SCANNER -> ICalScanner(input)
+            }
+        }
+    }
+}
+
+// Generic parser, builds the full Biweekly object model for each event
+class BiweeklyICalParser(input: InputStream) : ICalParser {
+
+    private val mReader = ICalEventReader(input)
+
+    @Throws(IOException::class)
+    override fun next(): ICalEventRecord? {
+        var vevent = mReader.next()
+        while (vevent != null) {
+            val record = toRecord(vevent)
+            if (record != null) {
+                return record
+            }
+            vevent = mReader.next()
+        }
+        return null
+    }
+
+    override fun close() {
+        mReader.close()
+    }
+
+    companion object {
+        fun toRecord(vevent: VEvent): ICalEventRecord? {
+            val uid = vevent.uid?.value ?: return null
+            val start = vevent.dateStart?.value ?: return null
+            return ICalEventRecord(
+                    uid = uid,
+                    summary = vevent.summary?.value,
+                    organizer = vevent.organizer?.commonName,
+                    location = vevent.location?.value,
+                    description = vevent.description?.value,
+                    start = Date(start.time),
+                    end = vevent.dateEnd?.value?.let { Date(it.time) },
+                    partStat = vevent.getExperimentalProperty("PARTSTAT")?.value)
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import java.io.BufferedInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.Calendar
+import java.util.Date
+import java.util.TimeZone
+
+// Minimal iCalendar scanner for the subset of RFC 5545 that Facebook feeds use. It works directly
+// on the raw bytes of each (unfolded) content line and only decodes the values of the properties
+// we are interested in, everything else is skipped without allocating anything.
+class ICalScanner(input: InputStream) : ICalParser {
+
+    private val mInput = input as? BufferedInputStream ?: BufferedInputStream(input, BUFFER_SIZE)
+    private var mNext = NONE
+    private var mLine = ByteArray(256)
+    private var mLineLength = 0
+    private var mScratch = ByteArray(256)
+    private val mCalendar = Calendar.getInstance()
+    private val mTimeZones = HashMap<String, TimeZone>()
+
+    @Throws(IOException::class)
+    override fun next(): ICalEventRecord? {
+        while (readLine()) {
+            if (lineEquals(BEGIN_VEVENT)) {
+                val record = readEvent()
+                if (record != null) {
+                    return record
+                }
+            }
+        }
+        return null
+    }
+
+    @Throws(IOException::class)
+    private fun readEvent(): ICalEventRecord? {
+        var uid: String? = null
+        var summary: String? = null
+        var organizer: String? = null
+        var location: String? = null
+        var description: String? = null
+        var start: Date? = null
+        var end: Date? = null
+        var partStat: String? = null
+        // Depth of nested components (e.g. VALARM), whose properties we ignore
+        var depth = 0
+
+        while (readLine()) {
+            val nameEnd = nameEnd()
+            if (nameIs(BEGIN, nameEnd)) {
+                depth++
+                continue
+            }
+            if (nameIs(END, nameEnd)) {
+                if (depth == 0) {
+                    break
+                }
+                depth--
+                continue
+            }
+            if (depth > 0) {
+                continue
+            }
+
+            val valueStart = valueStart(nameEnd)
+            if (valueStart < 0) {
+                continue
+            }
+            when {
+                nameIs(UID, nameEnd) -> uid = text(valueStart)
+                nameIs(SUMMARY, nameEnd) -> summary = text(valueStart)
+                nameIs(ORGANIZER, nameEnd) -> organizer = param(CN, nameEnd, valueStart)
+                nameIs(LOCATION, nameEnd) -> location = text(valueStart)
+                nameIs(DESCRIPTION, nameEnd) -> description = text(valueStart)
+                nameIs(DTSTART, nameEnd) -> start = dateTime(nameEnd, valueStart)
+                nameIs(DTEND, nameEnd) -> end = dateTime(nameEnd, valueStart)
+                nameIs(PARTSTAT, nameEnd) -> partStat = text(valueStart)
+            }
+        }
+
+        if (uid == null || start == null) {
+            return null
+        }
+        return ICalEventRecord(uid, summary, organizer, location, description, start, end, partStat)
+    }
+
+    // Reads the next content line into mLine, joining folded lines. Returns false on end of stream.
+    @Throws(IOException::class)
+    private fun readLine(): Boolean {
+        mLineLength = 0
+        var b = read()
+        if (b == -1) {
+            return false
+        }
+        while (b != -1) {
+            if (b == LF) {
+                val next = mInput.read()
+                if (next != SPACE && next != TAB) {
+                    mNext = next
+                    return true
+                }
+                // Folded line, the leading whitespace is not part of the content
+            } else if (b != CR) {
+                if (mLineLength == mLine.size) {
+                    mLine = mLine.copyOf(mLine.size * 2)
+                }
+                mLine[mLineLength++] = b.toByte()
+            }
+            b = read()
+        }
+        return true
+    }
+
+    private fun read(): Int {
+        if (mNext != NONE) {
+            val b = mNext
+            mNext = NONE
+            return b
+        }
+        return mInput.read()
+    }
+
+    private fun lineEquals(str: ByteArray) = mLineLength == str.size && nameIs(str, mLineLength)
+
+    private fun nameEnd(): Int {
+        for (i in 0 until mLineLength) {
+            val b = mLine[i]
+            if (b == SEMICOLON || b == COLON) {
+                return i
+            }
+        }
+        return mLineLength
+    }
+
+    private fun nameIs(name: ByteArray, nameEnd: Int): Boolean {
+        if (nameEnd != name.size) {
+            return false
+        }
+        for (i in 0 until nameEnd) {
+            // Property names are ASCII, so upper-casing with a bit mask is safe
+            if (mLine[i] != name[i] && (mLine[i].toInt() and 0xDF).toByte() != name[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    // Returns the offset of the first byte of the value, skipping over the parameters
+    private fun valueStart(nameEnd: Int): Int {
+        var quoted = false
+        for (i in nameEnd until mLineLength) {
+            val b = mLine[i]
+            if (b == QUOTE) {
+                quoted = !quoted
+            } else if (b == COLON && !quoted) {
+                return i + 1
+            }
+        }
+        return -1
+    }
+
+    private fun param(name: ByteArray, nameEnd: Int, valueStart: Int): String? {
+        val paramsEnd = valueStart - 1
+        var i = nameEnd
+        while (i < paramsEnd && mLine[i] == SEMICOLON) {
+            val keyStart = i + 1
+            var keyEnd = keyStart
+            while (keyEnd < paramsEnd && mLine[keyEnd] != EQUALS) {
+                keyEnd++
+            }
+            var valStart = keyEnd + 1
+            var valEnd = valStart
+            if (valStart < paramsEnd && mLine[valStart] == QUOTE) {
+                valStart++
+                valEnd = valStart
+                while (valEnd < paramsEnd && mLine[valEnd] != QUOTE) {
+                    valEnd++
+                }
+                i = valEnd + 1
+            } else {
+                while (valEnd < paramsEnd && mLine[valEnd] != SEMICOLON) {
+                    valEnd++
+                }
+                i = valEnd
+            }
+            if (keyEnd - keyStart == name.size && regionEquals(keyStart, name)) {
+                return String(mLine, valStart, Math.min(valEnd, paramsEnd) - valStart, Charsets.UTF_8)
+            }
+        }
+        return null
+    }
+
+    private fun regionEquals(offset: Int, str: ByteArray): Boolean {
+        for (i in 0 until str.size) {
+            val b = mLine[offset + i]
+            if (b != str[i] && (b.toInt() and 0xDF).toByte() != str[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    // Decodes a TEXT value, resolving the backslash escapes
+    private fun text(valueStart: Int): String {
+        var escaped = -1
+        for (i in valueStart until mLineLength) {
+            if (mLine[i] == BACKSLASH) {
+                escaped = i
+                break
+            }
+        }
+        if (escaped < 0) {
+            return String(mLine, valueStart, mLineLength - valueStart, Charsets.UTF_8)
+        }
+
+        if (mScratch.size < mLineLength) {
+            mScratch = ByteArray(mLine.size)
+        }
+        var length = 0
+        var i = valueStart
+        while (i < mLineLength) {
+            var b = mLine[i]
+            if (b == BACKSLASH && i + 1 < mLineLength) {
+                b = mLine[++i]
+                if (b == 'n'.toByte() || b == 'N'.toByte()) {
+                    b = '\n'.toByte()
+                }
+            }
+            mScratch[length++] = b
+            i++
+        }
+        return String(mScratch, 0, length, Charsets.UTF_8)
+    }
+
+    // VTIMEZONE components are not parsed, the TZID is looked up as an Olson ID (optionally in the
+    // global "/ID" form). Like biweekly, unknown IDs are treated as floating time in the default
+    // timezone, rather than as GMT which is what TimeZone.getTimeZone() falls back to.
+    private fun timeZone(tzid: String): TimeZone {
+        return mTimeZones.getOrPut(tzid) {
+            val id = tzid.removePrefix("/")
+            val tz = TimeZone.getTimeZone(id)
+            if (tz.id == "GMT" && id != "GMT") TimeZone.getDefault() else tz
+        }
+    }
+
+    // Parses DATE and DATE-TIME values in the UTC, TZID and floating forms
+    private fun dateTime(nameEnd: Int, valueStart: Int): Date? {
+        val length = mLineLength - valueStart
+        if (length < 8) {
+            return null
+        }
+        val hasTime = length >= 15 && mLine[valueStart + 8] == 'T'.toByte()
+        val tz = when {
+            hasTime && mLine[mLineLength - 1] == 'Z'.toByte() -> UTC
+            hasTime -> param(TZID, nameEnd, valueStart)?.let { timeZone(it) } ?: TimeZone.getDefault()
+            else -> TimeZone.getDefault()
+        }
+
+        mCalendar.clear()
+        mCalendar.timeZone = tz
+        val year = number(valueStart, 4)
+        val month = number(valueStart + 4, 2)
+        val day = number(valueStart + 6, 2)
+        if (year < 0 || month < 0 || day < 0) {
+            return null
+        }
+        if (hasTime) {
+            val hour = number(valueStart + 9, 2)
+            val minute = number(valueStart + 11, 2)
+            val second = number(valueStart + 13, 2)
+            if (hour < 0 || minute < 0 || second < 0) {
+                return null
+            }
+            mCalendar.set(year, month - 1, day, hour, minute, second)
+        } else {
+            mCalendar.set(year, month - 1, day, 0, 0, 0)
+        }
+        return mCalendar.time
+    }
+
+    private fun number(offset: Int, digits: Int): Int {
+        var result = 0
+        for (i in offset until offset + digits) {
+            val digit = mLine[i] - '0'.toByte()
+            if (digit < 0 || digit > 9) {
+                return -1
+            }
+            result = result * 10 + digit
+        }
+        return result
+    }
+
+    override fun close() {
+        mInput.close()
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 16 * 1024
+        private const val NONE = -2
+
+        private const val LF = '\n'.toInt()
+        private const val CR = '\r'.toInt()
+        private const val SPACE = ' '.toInt()
+        private const val TAB = '\t'.toInt()
+        private const val COLON = ':'.toByte()
+        private const val SEMICOLON = ';'.toByte()
+        private const val EQUALS = '='.toByte()
+        private const val QUOTE = '"'.toByte()
+        private const val BACKSLASH = '\\'.toByte()
+
+        private val UTC = TimeZone.getTimeZone("UTC")
+
+        private val BEGIN_VEVENT = "BEGIN:VEVENT".toByteArray()
+        private val BEGIN = "BEGIN".toByteArray()
+        private val END = "END".toByteArray()
+        private val UID = "UID".toByteArray()
+        private val SUMMARY = "SUMMARY".toByteArray()
+        private val ORGANIZER = "ORGANIZER".toByteArray()
+        private val LOCATION = "LOCATION".toByteArray()
+        private val DESCRIPTION = "DESCRIPTION".toByteArray()
+        private val DTSTART = "DTSTART".toByteArray()
+        private val DTEND = "DTEND".toByteArray()
+        private val PARTSTAT = "PARTSTAT".toByteArray()
+        private val CN = "CN".toByteArray()
+        private val TZID = "TZID".toByteArray()
+    }
+}
@@ -0,0 +1,132 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.provider.CalendarContract
+import android.util.LongSparseArray
+
+// Snapshot of all local calendars and events of an account, loaded with one query for calendars
+// and one query for events. Events are split by calendar and into past and future events in
+// memory, so each FBCalendar only has to pick up its own slice.
+class LocalEventIndex private constructor() {
+
+    class Events {
+        val past = StringLongMap() // FBID -> local ID
+        val future = StringLongMap() // FBID -> local ID
+        val fingerprints = StringLongMap() // FBID -> fingerprint
+    }
+
+    private val mCalendarIds = HashMap<String /* calendar name */, Long /* local ID */>()
+    private val mEvents = LongSparseArray<Events>()
+
+    fun calendarId(name: String) = mCalendarIds[name] ?: -1L
+
+    fun events(localCalendarId: Long): Events = mEvents.get(localCalendarId) ?: Events()
+
+    companion object {
+        private const val TAG = "LocalEventIndex"
+        private const val DAY_MS = 24 * 60 * 60 * 1000L
+
+        private val EVENT_PROJECTION = arrayOf(
+                CalendarContract.Events.CALENDAR_ID,
+                CalendarContract.Events.UID_2445,
+                CalendarContract.Events._ID,
+                FBEvent.FINGERPRINT_COLUMN,
+                CalendarContract.Events.DTSTART,
+                CalendarContract.Events.DTEND,
+                CalendarContract.Events.ALL_DAY)
+
+        @Throws(android.os.RemoteException::class,
+                android.database.sqlite.SQLiteException::class)
+        fun load(context: SyncContext): LocalEventIndex {
+            val index = LocalEventIndex()
+            val cur = context.contentProviderClient.query(
+                    context.contentUri(CalendarContract.Calendars.CONTENT_URI),
+                    arrayOf(CalendarContract.Calendars._ID, CalendarContract.Calendars.NAME),
+                    "((${CalendarContract.Calendars.ACCOUNT_NAME} = ?) AND " +
+                            "(${CalendarContract.Calendars.ACCOUNT_TYPE} = ?) AND " +
+                            "(${CalendarContract.Calendars.OWNER_ACCOUNT} = ?))",
+                    arrayOf(context.account.name, context.context.getString(R.string.account_type), context.account.name), null)
+            while (cur?.moveToNext() == true) {
+                val name = cur.getString(1) ?: continue
+                index.mCalendarIds[name] = cur.getLong(0)
+            }
+            cur?.close()
+
+            index.loadEvents(context, index.mCalendarIds.values)
+            return index
+        }
+
+        @Throws(android.os.RemoteException::class,
+                android.database.sqlite.SQLiteException::class)
+        fun load(context: SyncContext, localCalendarId: Long): LocalEventIndex {
+            val index = LocalEventIndex()
+            index.loadEvents(context, listOf(localCalendarId))
+            return index
+        }
+
+        // An event is in the past when it has ended. All-day events without DTEND (birthdays) last
+        // for one day, other events without DTEND end when they start.
+        fun isPast(dtStart: Long, dtEnd: Long?, allDay: Boolean, now: Long): Boolean {
+            val end = dtEnd ?: if (allDay) dtStart + DAY_MS else dtStart
+            return end < now
+        }
+    }
+
+    @Throws(android.os.RemoteException::class,
+            android.database.sqlite.SQLiteException::class)
+    private fun loadEvents(context: SyncContext, calendarIds: Collection<Long>) {
+        if (calendarIds.isEmpty()) {
+            return
+        }
+
+        val now = System.currentTimeMillis()
+        val cur = context.contentProviderClient.query(
+                context.contentUri(CalendarContract.Events.CONTENT_URI),
+                EVENT_PROJECTION,
+                "(${CalendarContract.Events.CALENDAR_ID} IN (${calendarIds.joinToString(",") { "?" }}))",
+                calendarIds.map { it.toString() }.toTypedArray(), null)
+        while (cur?.moveToNext() == true) {
+            try {
+                val uid = cur.getString(1) ?: continue
+                val calendarId = cur.getLong(0)
+                var events = mEvents.get(calendarId)
+                if (events == null) {
+                    events = Events()
+                    mEvents.put(calendarId, events)
+                }
+
+                val dtEnd = if (cur.isNull(5)) null else cur.getLong(5)
+                if (isPast(cur.getLong(4), dtEnd, cur.getInt(6) != 0, now)) {
+                    events.past.put(uid, cur.getLong(2))
+                } else {
+                    events.future.put(uid, cur.getLong(2))
+                }
+
+                val fingerprint = if (cur.isNull(3)) null else cur.getString(3).toLongOrNull()
+                if (fingerprint != null) {
+                    events.fingerprints.put(uid, fingerprint)
+                }
+            } catch (e: IllegalStateException) {
+                context.logger.error(TAG, "IllegalStateException when reading from cursor (had ${cur.columnCount} columns)")
+                // continue
+            }
+        }
+        cur?.close()
+    }
+}
@@ -0,0 +1,74 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.provider.CalendarContract
+import android.util.LongSparseArray
+
+// Index of reminders of local events, so that we don't have to query reminders for each event
+// individually while syncing. For each event it holds a flat array of (reminder ID, minutes) pairs.
+class LocalReminders private constructor() {
+
+    private val mReminders = LongSparseArray<LongArray>()
+
+    operator fun get(localEventId: Long): LongArray? = mReminders.get(localEventId)
+
+    fun clear() {
+        mReminders.clear()
+    }
+
+    private fun add(localEventId: Long, reminderId: Long, minutes: Long) {
+        val reminders = mReminders.get(localEventId)
+        if (reminders == null) {
+            mReminders.put(localEventId, longArrayOf(reminderId, minutes))
+        } else {
+            val newReminders = reminders.copyOf(reminders.size + 2)
+            newReminders[reminders.size] = reminderId
+            newReminders[reminders.size + 1] = minutes
+            mReminders.put(localEventId, newReminders)
+        }
+    }
+
+    companion object {
+        // Keep well below SQLite's limit of 999 bound arguments per statement
+        private const val MAX_IDS_PER_QUERY = 500
+
+        fun empty() = LocalReminders()
+
+        @Throws(android.os.RemoteException::class,
+                android.database.sqlite.SQLiteException::class)
+        fun load(context: SyncContext, localEventIds: LongArray): LocalReminders {
+            val index = LocalReminders()
+            for (start in 0 until localEventIds.size step MAX_IDS_PER_QUERY) {
+                val chunk = localEventIds.copyOfRange(start, Math.min(start + MAX_IDS_PER_QUERY, localEventIds.size))
+                val cur = context.contentProviderClient.query(
+                        context.contentUri(CalendarContract.Reminders.CONTENT_URI),
+                        arrayOf(CalendarContract.Reminders.EVENT_ID,
+                                CalendarContract.Reminders._ID,
+                                CalendarContract.Reminders.MINUTES),
+                        "(${CalendarContract.Reminders.EVENT_ID} IN (${chunk.joinToString(",") { "?" }}))",
+                        chunk.map { it.toString() }.toTypedArray(), null)
+                while (cur?.moveToNext() == true) {
+                    index.add(cur.getLong(0), cur.getLong(1), cur.getLong(2))
+                }
+                cur?.close()
+            }
+            return index
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+
+// Index of line offsets over log segments (usually memory-mapped files), so that the log viewer
+// can show any line without reading the whole log into memory. Only complete lines (terminated
+// by '\n') are indexed; when the last segment grows, extendLastSegment() indexes the new lines.
+//
+// Lines are expected in the Logger format "yyyy-MM-dd HH:mm:ss.SSS L/TAG: message". Lines that
+// don't match (e.g. continuation of a multi-line message) inherit the level and tag of the line
+// before them when filtering.
+class LogIndex {
+
+    private val mSegments = ArrayList<ByteBuffer>()
+    private val mSegmentEnds = ArrayList<Int>() // end of the indexed part of each segment
+    // Line starts, encoded as (segment shl 32) or offset
+    private var mLines = LongArray(1024)
+    private var mSize = 0
+
+    val size: Int
+        @Synchronized get() = mSize
+
+    // Number of bytes of the last segment that have been indexed
+    val indexedBytes: Int
+        @Synchronized get() = if (mSegmentEnds.isEmpty()) 0 else mSegmentEnds.last()
+
+    @Synchronized
+    fun clear() {
+        mSegments.clear()
+        mSegmentEnds.clear()
+        mSize = 0
+    }
+
+    // Adds a segment and indexes it, returns the number of new lines
+    @Synchronized
+    fun addSegment(buffer: ByteBuffer): Int {
+        mSegments.add(buffer)
+        mSegmentEnds.add(0)
+        return indexLastSegment()
+    }
+
+    // Replaces the last segment with a bigger view of the same data (e.g. a new mapping of the
+    // log file that has grown) and indexes the new lines. Returns the number of new lines.
+    @Synchronized
+    fun extendLastSegment(buffer: ByteBuffer): Int {
+        mSegments[mSegments.size - 1] = buffer
+        return indexLastSegment()
+    }
+
+    private fun indexLastSegment(): Int {
+        val segment = mSegments.size - 1
+        val buffer = mSegments[segment]
+        val start = mSegmentEnds[segment]
+        val limit = buffer.limit()
+        var lineStart = start
+        val oldSize = mSize
+        for (pos in start until limit) {
+            if (buffer.get(pos) == NEWLINE) {
+                addLine(segment, lineStart)
+                lineStart = pos + 1
+            }
+        }
+        mSegmentEnds[segment] = lineStart
+        return mSize - oldSize
+    }
+
+    private fun addLine(segment: Int, offset: Int) {
+        if (mSize == mLines.size) {
+            mLines = mLines.copyOf(mSize * 2)
+        }
+        mLines[mSize++] = (segment.toLong() shl 32) or offset.toLong()
+    }
+
+    private fun segmentOf(line: Int) = (mLines[line] ushr 32).toInt()
+    private fun startOf(line: Int) = mLines[line].toInt()
+
+    // End of the line, excluding the '\n'
+    private fun endOf(line: Int): Int {
+        val segment = segmentOf(line)
+        return if (line + 1 < mSize && segmentOf(line + 1) == segment) {
+            startOf(line + 1) - 1
+        } else {
+            mSegmentEnds[segment] - 1
+        }
+    }
+
+    // Returns an empty string for lines that are not (or no longer) in the index
+    @Synchronized
+    fun line(line: Int): String {
+        if (line >= mSize) {
+            return ""
+        }
+        val buffer = mSegments[segmentOf(line)]
+        val start = startOf(line)
+        val bytes = ByteArray(endOf(line) - start)
+        for (i in bytes.indices) {
+            bytes[i] = buffer.get(start + i)
+        }
+        return String(bytes, UTF8)
+    }
+
+    // Level of the line, or null when the line is not in the Logger format
+    @Synchronized
+    fun level(line: Int): Logger.Level? {
+        val buffer = mSegments[segmentOf(line)]
+        val start = startOf(line)
+        if (endOf(line) - start <= TAG_OFFSET || buffer.get(start + LEVEL_OFFSET + 1) != '/'.toByte()) {
+            return null
+        }
+        return when (buffer.get(start + LEVEL_OFFSET).toChar()) {
+            'D' -> Logger.Level.DEBUG
+            'I' -> Logger.Level.INFO
+            'W' -> Logger.Level.WARNING
+            'E' -> Logger.Level.ERROR
+            else -> null
+        }
+    }
+
+    // Returns whether the tag of a line (which must be in the Logger format) is `tag`
+    private fun hasTag(line: Int, tag: ByteArray): Boolean {
+        val buffer = mSegments[segmentOf(line)]
+        val start = startOf(line) + TAG_OFFSET
+        if (endOf(line) - start < tag.size + 1) {
+            return false
+        }
+        for (i in tag.indices) {
+            if (buffer.get(start + i) != tag[i]) {
+                return false
+            }
+        }
+        return buffer.get(start + tag.size) == ':'.toByte()
+    }
+
+    class Filter(val minLevel: Logger.Level = Logger.Level.DEBUG, val tag: String? = null) {
+        internal val tagBytes = tag?.toByteArray(UTF8)
+
+        val isEmpty get() = minLevel == Logger.Level.DEBUG && tag == null
+
+        // State carried over from the previous line, for lines without a level
+        internal var lastMatched = true
+    }
+
+    // Appends lines from `from` on that match the filter to `out`, returns the new size of `out`
+    @Synchronized
+    fun filter(filter: Filter, from: Int, out: IntArray, outSize: Int): Pair<IntArray, Int> {
+        var result = out
+        var size = outSize
+        for (line in from until mSize) {
+            val level = level(line)
+            val matches = if (level == null) {
+                filter.lastMatched
+            } else {
+                level >= filter.minLevel && (filter.tagBytes == null || hasTag(line, filter.tagBytes))
+            }
+            filter.lastMatched = matches
+            if (matches) {
+                if (size == result.size) {
+                    result = result.copyOf(maxOf(size * 2, 1024))
+                }
+                result[size++] = line
+            }
+        }
+        return Pair(result, size)
+    }
+
+    companion object {
+        private const val NEWLINE = '\n'.toByte()
+        private const val LEVEL_OFFSET = 24 // after "yyyy-MM-dd HH:mm:ss.SSS "
+        private const val TAG_OFFSET = LEVEL_OFFSET + 2
+        private val UTF8 = Charset.forName("UTF-8")
+    }
+}
@@ -20,25 +20,58 @@ package cz.dvratil.fbeventsync
 import android.content.Intent
 import android.os.Build
 import android.os.Bundle
+import android.os.Handler
+import android.os.HandlerThread
 import android.support.v4.content.FileProvider
+import android.support.v7.app.AlertDialog
 import android.support.v7.app.AppCompatActivity
+import android.support.v7.widget.LinearLayoutManager
+import android.support.v7.widget.RecyclerView
 import android.support.v7.widget.Toolbar
 import android.util.Log
+import android.view.LayoutInflater
 import android.view.Menu
 import android.view.MenuItem
 import android.view.View
-import android.widget.ScrollView
+import android.view.ViewGroup
+import android.widget.EditText
 import android.widget.TextView
 import android.widget.Toast
 
-import java.io.BufferedReader
 import java.io.File
-import java.io.FileReader
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 
+// Shows the log through a LogIndex over memory-mapped log segments, so that only the visible
+// lines are ever read and laid out. The index is built and refreshed on a background thread,
+// which also picks up new lines while a sync is running.
 class LogViewActivity : AppCompatActivity() {
 
-    private lateinit var mTextView: TextView
-    private lateinit var mScrollView: ScrollView
+    private lateinit var mRecyclerView: RecyclerView
+    private lateinit var mLayoutManager: LinearLayoutManager
+    private val mAdapter = LineAdapter()
+
+    private var mFollow = true
+    private var mMinLevel = Logger.Level.DEBUG
+    private var mTag: String? = null
+    // Each process writes its own log, the viewer shows one of them at a time
+    @Volatile private var mLog = Logger.SYNC_LOG
+
+    private lateinit var mLoaderThread: HandlerThread
+    private lateinit var mLoader: Handler
+    private val mUiHandler = Handler()
+
+    // Owned by the loader thread
+    private val mIndex = LogIndex()
+    private var mFiles = emptyList<File>()
+    private var mCurrentFile: File? = null
+    private var mFilter = LogIndex.Filter()
+    private var mFiltered = IntArray(0)
+    private var mFilteredSize = 0
+    private var mFilteredUpTo = 0
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -47,8 +80,30 @@ class LogViewActivity : AppCompatActivity() {
 
         supportActionBar?.setDisplayHomeAsUpEnabled(true)
 
-        mTextView = findViewById<View>(R.id.log_text_view) as TextView
-        mScrollView = findViewById<View>(R.id.log_scroll_view) as ScrollView
+        mLayoutManager = LinearLayoutManager(this)
+        mRecyclerView = findViewById<RecyclerView>(R.id.log_list).apply {
+            layoutManager = mLayoutManager
+            adapter = mAdapter
+            addOnScrollListener(object : RecyclerView.OnScrollListener() {
+                override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
+                    // Scrolling up stops following, scrolling back to the end resumes it
+                    if (newState == RecyclerView.SCROLL_STATE_DRAGGING) {
+                        setFollow(false)
+                    } else if (newState == RecyclerView.SCROLL_STATE_IDLE &&
+                            mLayoutManager.findLastVisibleItemPosition() == mAdapter.itemCount - 1) {
+                        setFollow(true)
+                    }
+                }
+            })
+        }
+
+        mLoaderThread = HandlerThread("log-loader").apply { start() }
+        mLoader = Handler(mLoaderThread.looper)
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        mLoaderThread.quit()
     }
 
     override fun onCreateOptionsMenu(menu: Menu): Boolean {
@@ -56,44 +111,84 @@ class LogViewActivity : AppCompatActivity() {
         return true
     }
 
+    override fun onPrepareOptionsMenu(menu: Menu): Boolean {
+        menu.findItem(R.id.action_follow_log).isChecked = mFollow
+        menu.findItem(if (mLog == Logger.APP_LOG) R.id.action_log_file_app else R.id.action_log_file_sync).isChecked = true
+        menu.findItem(when (mMinLevel) {
+            Logger.Level.DEBUG -> R.id.action_log_level_debug
+            Logger.Level.INFO -> R.id.action_log_level_info
+            Logger.Level.WARNING -> R.id.action_log_level_warning
+            Logger.Level.ERROR,
+            Logger.Level.NO_LOG -> R.id.action_log_level_error
+        }).isChecked = true
+        return super.onPrepareOptionsMenu(menu)
+    }
+
     override fun onResume() {
         super.onResume()
 
-        loadLogFile()
+        mLoader.post { reload() }
+        mLoader.postDelayed(mRefresh, REFRESH_INTERVAL_MS)
+    }
+
+    override fun onPause() {
+        super.onPause()
+
+        mLoader.removeCallbacks(mRefresh)
     }
 
     override fun onOptionsItemSelected(item: MenuItem): Boolean {
         when (item.itemId) {
+            R.id.action_follow_log -> {
+                setFollow(!item.isChecked)
+                return true
+            }
+
+            R.id.action_log_file_sync -> return setLog(Logger.SYNC_LOG)
+            R.id.action_log_file_app -> return setLog(Logger.APP_LOG)
+
+            R.id.action_log_level_debug -> return setMinLevel(Logger.Level.DEBUG)
+            R.id.action_log_level_info -> return setMinLevel(Logger.Level.INFO)
+            R.id.action_log_level_warning -> return setMinLevel(Logger.Level.WARNING)
+            R.id.action_log_level_error -> return setMinLevel(Logger.Level.ERROR)
+
+            R.id.action_log_tag -> {
+                val input = EditText(this)
+                input.hint = getString(R.string.log_tag_hint)
+                input.setSingleLine()
+                input.setText(mTag ?: "")
+                AlertDialog.Builder(this)
+                        .setTitle(R.string.log_tag_action)
+                        .setView(input)
+                        .setPositiveButton(android.R.string.ok) { _, _ ->
+                            val tag = input.text.toString().trim()
+                            mTag = if (tag.isEmpty()) null else tag
+                            updateFilter()
+                        }
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show()
+                return true
+            }
+
             R.id.action_clear_log -> {
-                Logger.getInstance(this).clearLogs()
-                loadLogFile()
+                // Let go of the mapped files before they are removed
+                mAdapter.update(null, 0, true)
+                mLoader.post {
+                    mIndex.clear()
+                    mFiles = emptyList()
+                    mCurrentFile = null
+                    Logger.getInstance(this).clearLogs()
+                    reload()
+                }
                 return true
             }
 
             R.id.action_send_to_develop -> {
-                val intent = Intent(Intent.ACTION_SEND)
-                intent.type = "message/rfc822"
-                intent.putExtra(Intent.EXTRA_EMAIL, arrayOf("me@dvratil.cz"))
-                intent.putExtra(Intent.EXTRA_SUBJECT, "FBEventSync logs")
-
-                intent.putExtra(
-                        Intent.EXTRA_TEXT,
-                        "${getString(R.string.log_email_template)}\n\n\n" +
-                                "App ID: ${BuildConfig.APPLICATION_ID}\n" +
-                                "App version: ${BuildConfig.VERSION_CODE} (${BuildConfig.VERSION_NAME})\n" +
-                                "App build: ${BuildConfig.BUILD_TYPE}\n" +
-                                "OS: ${Build.VERSION.RELEASE} (API ${Build.VERSION.SDK_INT})\n")
-
-                val logFile = File(filesDir, Logger.LOG_FILE)
-                if (!logFile.exists() || !logFile.canRead()) {
-                    Toast.makeText(this, R.string.log_error_sending_log_toast, Toast.LENGTH_SHORT).show()
-                    return false
+                // Collecting the logs may take a while
+                mLoader.post {
+                    val logFile = Logger.getInstance(this).exportArchive()
+                    runOnUiThread { sendLogs(logFile) }
                 }
-
-                val contentUri = FileProvider.getUriForFile(
-                        this, getString(R.string.fileprovider_authority), logFile)
-                intent.putExtra(Intent.EXTRA_STREAM, contentUri)
-                startActivity(Intent.createChooser(intent, resources.getString(R.string.log_send_email_action)))
                 return true
             }
 
@@ -101,31 +196,213 @@ class LogViewActivity : AppCompatActivity() {
         }
     }
 
-    private fun loadLogFile() {
-        val file = File(filesDir, Logger.LOG_FILE)
-        val builder = StringBuilder()
-        try {
-            val buffer = BufferedReader(FileReader(file))
-            try {
-                var line = buffer.readLine()
-                while (line != null) {
-                    builder.append(line)
-                    builder.append('\n')
-                    line = buffer.readLine()
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "loadLogFile read: $e")
+    private fun sendLogs(logFile: File?) {
+        if (logFile == null || !logFile.canRead()) {
+            Toast.makeText(this, R.string.log_error_sending_log_toast, Toast.LENGTH_SHORT).show()
+            return
+        }
+
+        val intent = Intent(Intent.ACTION_SEND)
+        intent.type = "message/rfc822"
+        intent.putExtra(Intent.EXTRA_EMAIL, arrayOf("me@dvratil.cz"))
+        intent.putExtra(Intent.EXTRA_SUBJECT, "FBEventSync logs")
+
+        intent.putExtra(
+                Intent.EXTRA_TEXT,
+                "${getString(R.string.log_email_template)}\n\n\n" +
+                        "App ID: ${BuildConfig.APPLICATION_ID}\n" +
+                        "App version: ${BuildConfig.VERSION_CODE} (${BuildConfig.VERSION_NAME})\n" +
+                        "App build: ${BuildConfig.BUILD_TYPE}\n" +
+                        "OS: ${Build.VERSION.RELEASE} (API ${Build.VERSION.SDK_INT})\n")
+
+        val contentUri = FileProvider.getUriForFile(
+                this, getString(R.string.fileprovider_authority), logFile)
+        intent.putExtra(Intent.EXTRA_STREAM, contentUri)
+        startActivity(Intent.createChooser(intent, resources.getString(R.string.log_send_email_action)))
+    }
+
+    private fun setFollow(follow: Boolean) {
+        if (mFollow == follow) {
+            return
+        }
+        mFollow = follow
+        invalidateOptionsMenu()
+        if (follow) {
+            scrollToEnd()
+        }
+    }
+
+    private fun setLog(log: String): Boolean {
+        if (mLog != log) {
+            mLog = log
+            invalidateOptionsMenu()
+            mLoader.post { reload() }
+        }
+        return true
+    }
+
+    private fun setMinLevel(level: Logger.Level): Boolean {
+        mMinLevel = level
+        invalidateOptionsMenu()
+        updateFilter()
+        return true
+    }
+
+    private fun updateFilter() {
+        val filter = LogIndex.Filter(mMinLevel, mTag)
+        mLoader.post {
+            mFilter = filter
+            mFilteredSize = 0
+            mFilteredUpTo = 0
+            publish(true)
+        }
+    }
+
+    private fun scrollToEnd() {
+        if (mAdapter.itemCount > 0) {
+            mRecyclerView.scrollToPosition(mAdapter.itemCount - 1)
+        }
+    }
+
+    private val mRefresh = object : Runnable {
+        override fun run() {
+            refresh()
+            mLoader.postDelayed(this, REFRESH_INTERVAL_MS)
+        }
+    }
+
+    // Loader thread: maps all segments and indexes them from scratch
+    private fun reload() {
+        val logger = Logger.getInstance(this)
+        // Make sure we show also the lines this process is still waiting to write; the sync
+        // process flushes its own log on its own
+        logger.sync()
+        val segments = logger.segments(mLog)
+        mIndex.clear()
+        mFiles = segments
+        mCurrentFile = segments.lastOrNull()
+        mFilter = LogIndex.Filter(mFilter.minLevel, mFilter.tag)
+        mFilteredSize = 0
+        mFilteredUpTo = 0
+        publish(true)
+
+        val cacheDir = File(cacheDir, CACHE_DIR)
+        cacheDir.mkdirs()
+        // Decompressed segments that are gone from the log
+        cacheDir.listFiles()?.filter { cached -> segments.none { it.name == cached.name } }?.forEach { it.delete() }
+
+        for (segment in segments) {
+            val file = if (segment.name.endsWith(".gz")) decompress(segment, cacheDir) else segment
+            mIndex.addSegment(map(file ?: continue) ?: continue)
+            publish(false)
+        }
+    }
+
+    // Loader thread: picks up new lines of the current segment, or reloads everything when the
+    // log has been rotated in the meantime
+    private fun refresh() {
+        val current = mCurrentFile ?: return reload()
+        val segments = Logger.getInstance(this).segments(mLog)
+        if (segments != mFiles || current.length() < mIndex.indexedBytes) {
+            return reload()
+        }
+        if (current.length() > mIndex.indexedBytes) {
+            val buffer = map(current) ?: return
+            if (mIndex.extendLastSegment(buffer) > 0) {
+                publish(false)
             }
+        }
+    }
 
-        } catch (e: Exception) {
-            Log.e(TAG, "loadLogFile open: $e")
+    private fun decompress(segment: File, cacheDir: File): File? {
+        val file = File(cacheDir, segment.name)
+        if (file.exists()) {
+            return file
+        }
+        return try {
+            Logger.openSegment(segment).use { input ->
+                FileOutputStream(file).use { input.copyTo(it) }
+            }
+            file
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to decompress ${segment.name}: $e")
+            file.delete()
+            null
         }
+    }
 
-        mTextView.text = builder.toString()
-        mScrollView.post { mScrollView.fullScroll(View.FOCUS_DOWN) }
+    private fun map(file: File): ByteBuffer? {
+        return try {
+            RandomAccessFile(file, "r").use { raf ->
+                raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to map ${file.name}: $e")
+            null
+        }
+    }
+
+    // Loader thread: applies the filter to the newly indexed lines and hands the result over
+    // to the adapter
+    private fun publish(reset: Boolean) {
+        val filtered: IntArray?
+        val count: Int
+        if (mFilter.isEmpty) {
+            filtered = null
+            count = mIndex.size
+        } else {
+            val (lines, size) = mIndex.filter(mFilter, mFilteredUpTo, mFiltered, mFilteredSize)
+            mFiltered = lines
+            mFilteredSize = size
+            mFilteredUpTo = mIndex.size
+            filtered = lines
+            count = size
+        }
+        mUiHandler.post {
+            mAdapter.update(filtered, count, reset)
+            if (mFollow) {
+                scrollToEnd()
+            }
+        }
+    }
+
+    private inner class LineAdapter : RecyclerView.Adapter<LineAdapter.ViewHolder>() {
+
+        inner class ViewHolder(view: View) : RecyclerView.ViewHolder(view) {
+            var text = view.findViewById<TextView>(R.id.log_line_text)
+        }
+
+        // Positions of the shown lines in the index, null when all lines are shown
+        private var mLines: IntArray? = null
+        private var mCount = 0
+
+        fun update(lines: IntArray?, count: Int, reset: Boolean) {
+            val oldCount = mCount
+            mLines = lines
+            mCount = count
+            if (reset || count < oldCount) {
+                notifyDataSetChanged()
+            } else if (count > oldCount) {
+                notifyItemRangeInserted(oldCount, count - oldCount)
+            }
+        }
+
+        override fun getItemCount() = mCount
+
+        override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ViewHolder {
+            return ViewHolder(LayoutInflater.from(parent.context).inflate(R.layout.log_line_item, parent, false))
+        }
+
+        override fun onBindViewHolder(holder: ViewHolder, position: Int) {
+            val line = mLines?.get(position) ?: position
+            holder.text.text = mIndex.line(line)
+        }
     }
 
     companion object {
         private const val TAG = "LOGVIEW"
+
+        private const val CACHE_DIR = "logview"
+        private const val REFRESH_INTERVAL_MS = 1000L
     }
 }
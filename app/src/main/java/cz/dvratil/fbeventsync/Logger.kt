@@ -20,91 +20,505 @@ package cz.dvratil.fbeventsync
 import android.content.Context
 import android.util.Log
 
+import java.io.BufferedWriter
 import java.io.File
 import java.io.FileInputStream
+import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.FileWriter
 import java.io.IOException
-import java.lang.ref.WeakReference
-import java.text.SimpleDateFormat
-import java.util.Date
-import java.util.Locale
-
+import java.io.InputStream
+import java.util.Calendar
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+// Log lines are put into a lock-free ring buffer and written to the log file by a background
+// thread in large batches, so that logging never blocks the sync on storage. The writer flushes
+// the file at least every FLUSH_INTERVAL_MS, and right away after an error or when flush() is
+// called. When the buffer is full (the writer can't keep up) new lines are dropped and the
+// number of dropped lines is logged once there is room again.
+//
+// Only lines at or above minLevel are written to the log file. Messages that are expensive to
+// build should use the lambda variants, e.g. logger.debug(TAG) { "Event $id: $values" }, which
+// only build the message when the level is enabled.
+//
+// Each process writes its own log: the sync process logs into logs/sync.log, the app process
+// into logs/app.log, so a process never renames or truncates a file the other one writes to.
+// Each log is split into segments: lines are appended to <name>.log, which is renamed to
+// <name>-<n>.log once it grows over the segment size. Old segments are compressed and removed
+// on a background thread according to `rotation`, so writing never copies existing data.
+// Logs are cleared by deleting the files (they may be mapped by the log viewer), the writer
+// starts a new file when it finds its file gone.
+//
+// Repeated lines are folded by the writer (see RepeatFilter): an identical line that follows
+// right after is only counted, and only a limited number of similar lines (same tag and message
+// with numbers ignored) or lines with the same tag is written per window. What has been left
+// out is summarized when the window ends, at the latest on flush(), i.e. at the end of a sync.
 class Logger private constructor() {
 
+    class Rotation(val segmentSize: Long = 64 * 1024,
+                   val maxSegments: Int = 8, // including the current one
+                   val maxTotalBytes: Long = 512 * 1024,
+                   val compress: Boolean = true)
+
+    @Volatile
+    var rotation = Rotation()
+
     private var mContext: Context? = null
+    private var mLogDir: File? = null
+    private var mName = APP_LOG
     private var mLogFile: File? = null
-    private var mLogWriter: FileWriter? = null
-
-    private var mDateFormat: SimpleDateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US)
-    private val mMinLogCatLvl = if (BuildConfig.DEBUG) LogLevel.DEBUG else LogLevel.NO_LOG
+    private var mNextSegment = 1L
+    private var mLogWriter: BufferedWriter? = null
+    // Size of the log file, tracked by the writer so that it does not have to stat the file
+    private var mLogSize = 0L
+    private val mFileLock = Any()
+
+    // Only ever used by the writer thread
+    private val mTimestampFormat = TimestampFormat()
+    private var mCharBuffer = CharArray(256)
+    private val mLine = StringBuilder(256)
+    private val mRepeatFilter = RepeatFilter()
+    private val mSink = object : RepeatFilter.Sink {
+        override fun write(time: Long, level: Level, tag: String, msg: String) = writeLine(time, level, tag, msg)
+    }
 
-    private enum class LogLevel constructor(private var `val`: Int, private var lvlChar: String) {
-        DEBUG(Log.DEBUG, "D"),
-        INFO(Log.INFO, "I"),
-        WARNING(Log.WARN, "W"),
-        ERROR(Log.ERROR, "E"),
+    enum class Level constructor(private var `val`: Int, val char: Char) {
+        DEBUG(Log.DEBUG, 'D'),
+        INFO(Log.INFO, 'I'),
+        WARNING(Log.WARN, 'W'),
+        ERROR(Log.ERROR, 'E'),
 
-        NO_LOG(1000, "N");
+        NO_LOG(1000, 'N');
 
         fun toInt(): Int  = `val`
-        override fun toString() = lvlChar
+        override fun toString() = char.toString()
+    }
+
+    // Minimum level of lines written to the log file, can be changed at any time
+    @Volatile
+    var minLevel = if (BuildConfig.DEBUG) Level.DEBUG else Level.INFO
+    private val mMinLogCatLvl = if (BuildConfig.DEBUG) Level.DEBUG else Level.NO_LOG
+
+    // Formats timestamps as "yyyy-MM-dd HH:mm:ss.SSS" in the default timezone without allocating:
+    // the date and time part only changes once a second, so it's cached and only the milliseconds
+    // are formatted for each line. Not thread-safe.
+    class TimestampFormat(private val mCalendar: Calendar = Calendar.getInstance()) {
+        private val mPrefix = CharArray(20) // "yyyy-MM-dd HH:mm:ss."
+        private var mPrefixSecond = Long.MIN_VALUE
+
+        fun append(time: Long, out: StringBuilder) {
+            val second = if (time >= 0) time / 1000 else (time - 999) / 1000
+            if (second != mPrefixSecond) {
+                mCalendar.timeInMillis = second * 1000
+                put(mCalendar.get(Calendar.YEAR), 0, 4)
+                mPrefix[4] = '-'
+                put(mCalendar.get(Calendar.MONTH) + 1, 5, 2)
+                mPrefix[7] = '-'
+                put(mCalendar.get(Calendar.DAY_OF_MONTH), 8, 2)
+                mPrefix[10] = ' '
+                put(mCalendar.get(Calendar.HOUR_OF_DAY), 11, 2)
+                mPrefix[13] = ':'
+                put(mCalendar.get(Calendar.MINUTE), 14, 2)
+                mPrefix[16] = ':'
+                put(mCalendar.get(Calendar.SECOND), 17, 2)
+                mPrefix[19] = '.'
+                mPrefixSecond = second
+            }
+            val millis = (time - second * 1000).toInt()
+            out.append(mPrefix)
+                    .append('0' + millis / 100)
+                    .append('0' + millis / 10 % 10)
+                    .append('0' + millis % 10)
+        }
+
+        private fun put(value: Int, offset: Int, digits: Int) {
+            var v = value
+            for (i in offset + digits - 1 downTo offset) {
+                mPrefix[i] = '0' + v % 10
+                v /= 10
+            }
+        }
+    }
+
+    // Decides which lines are written to the log file, so that a message that repeats for every
+    // event of a large feed does not flood the log. Lines that are left out are accounted for by
+    // summary lines written when the current window ends. Not thread-safe.
+    class RepeatFilter(private val templateBurst: Int = TEMPLATE_BURST,
+                       private val tagBurst: Int = TAG_BURST,
+                       private val windowMs: Long = WINDOW_MS) {
+
+        interface Sink {
+            fun write(time: Long, level: Level, tag: String, msg: String)
+        }
+
+        private class Counter(val level: Level, val tag: String) {
+            var written = 0
+            var suppressed = 0
+            var sample = ""
+        }
+
+        private val mTemplates = HashMap<String, Counter>()
+        private val mTags = HashMap<String, Counter>()
+        private var mWindowStart = 0L
+
+        // The last written line and how many times it has been repeated since
+        private var mLastLevel: Level? = null
+        private var mLastTag = ""
+        private var mLastMsg = ""
+        private var mRepeats = 0
+
+        fun filter(time: Long, level: Level, tag: String, msg: String, sink: Sink) {
+            tick(time, sink)
+
+            if (level == mLastLevel && tag == mLastTag && msg == mLastMsg) {
+                mRepeats++
+                return
+            }
+            writeRepeats(time, sink)
+
+            val tagCounter = mTags.getOrPut(tag) { Counter(Level.WARNING, tag) }
+            val key = template(level, tag, msg)
+            var counter = mTemplates[key]
+            if (counter == null && mTemplates.size < MAX_TEMPLATES) {
+                counter = Counter(level, tag)
+                mTemplates[key] = counter
+            }
+
+            val limited = when {
+                counter != null && counter.written >= templateBurst -> counter
+                tagCounter.written >= tagBurst -> tagCounter
+                else -> null
+            }
+            if (limited != null) {
+                if (limited.suppressed++ == 0) {
+                    limited.sample = msg
+                }
+                mLastLevel = null
+                return
+            }
+
+            counter?.let { it.written++ }
+            tagCounter.written++
+            sink.write(time, level, tag, msg)
+            mLastLevel = level
+            mLastTag = tag
+            mLastMsg = msg
+        }
+
+        // Ends the current window if it has expired
+        fun tick(time: Long, sink: Sink) {
+            if (time - mWindowStart >= windowMs || time < mWindowStart) {
+                endWindow(time, sink)
+            }
+        }
+
+        // Writes out what has been left out so far and starts a new window
+        fun endWindow(time: Long, sink: Sink) {
+            writeRepeats(time, sink)
+            for (counter in mTemplates.values) {
+                if (counter.suppressed > 0) {
+                    sink.write(time, counter.level, counter.tag,
+                            "Suppressed ${counter.suppressed} more similar messages, first: ${counter.sample}")
+                }
+            }
+            for (counter in mTags.values) {
+                if (counter.suppressed > 0) {
+                    sink.write(time, counter.level, counter.tag,
+                            "Suppressed ${counter.suppressed} more messages, first: ${counter.sample}")
+                }
+            }
+            mTemplates.clear()
+            mTags.clear()
+            mLastLevel = null
+            mWindowStart = time
+        }
+
+        private fun writeRepeats(time: Long, sink: Sink) {
+            val level = mLastLevel ?: return
+            if (mRepeats > 0) {
+                sink.write(time, level, mLastTag, "Previous message repeated $mRepeats times")
+                mRepeats = 0
+            }
+        }
+
+        // Level, tag and the beginning of the message, with each run of digits replaced by '#'
+        private fun template(level: Level, tag: String, msg: String): String {
+            val limit = tag.length + 2 + TEMPLATE_LENGTH
+            val template = StringBuilder(limit).append(level.char).append(tag).append(':')
+            var digits = false
+            for (c in msg) {
+                if (template.length >= limit) {
+                    break
+                }
+                if (c in '0'..'9') {
+                    if (!digits) {
+                        template.append('#')
+                    }
+                    digits = true
+                } else {
+                    template.append(c)
+                    digits = false
+                }
+            }
+            return template.toString()
+        }
+
+        companion object {
+            private const val TEMPLATE_BURST = 20
+            private const val TAG_BURST = 1000
+            private const val WINDOW_MS = 60 * 1000L
+            private const val TEMPLATE_LENGTH = 48
+            private const val MAX_TEMPLATES = 512
+        }
+    }
+
+    // A slot of the ring buffer. The sequence number tells whether the slot is free for the
+    // producer at position `seq` (seq == position), or holds a line for the consumer at position
+    // `seq - 1`, see Dmitry Vyukov's bounded queue.
+    private class Slot(@Volatile var seq: Long) {
+        var time = 0L
+        var level = Level.DEBUG
+        var tag = ""
+        var msg = ""
+    }
+
+    private val mSlots = Array(BUFFER_CAPACITY) { Slot(it.toLong()) }
+    private val mTail = AtomicLong()   // next position to write to, shared by the producers
+    @Volatile
+    private var mHead = 0L             // next position to read from, owned by the writer
+    private val mDropped = AtomicLong()
+
+    @Volatile
+    private var mFlushRequested = false
+    @Volatile
+    private var mEndWindowRequested = false
+    @Volatile
+    private var mFlushedPosition = 0L  // everything before this position is in the log file
+    private val mFlushedLock = Object()
+
+    private var mWriterThread: Thread? = null
+
+    // Compresses and removes old segments. Everything that touches the old segments runs here,
+    // so that it does not need any further synchronization.
+    private val mMaintenance = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "logger-maintenance").apply {
+            isDaemon = true
+            priority = Thread.MIN_PRIORITY
+        }
     }
 
+    // Removes the logs of all processes
     fun clearLogs() {
-        synchronized(this) {
-            val writer = mLogWriter ?: return
-            try {
-                writer.close()
+        sync()
+        runMaintenance {
+            val logDir = mLogDir ?: return@runMaintenance
+            LOGS.forEach { name ->
+                oldSegments(name).forEach { it.delete() }
+                if (name != mName) {
+                    File(logDir, "$name$SEGMENT_SUFFIX").delete()
+                }
+            }
+        }
+        synchronized(mFileLock) {
+            val logFile = mLogFile ?: return
+            closeLog()
+            logFile.delete()
+            openLog(logFile)
+        }
+    }
 
-                val outChan = FileOutputStream(mLogFile, true).channel
-                outChan.truncate(0)
-                outChan.close()
+    // Asks the writer to write out everything logged so far, including the summary of folded
+    // lines, without waiting for it
+    fun flush() {
+        mEndWindowRequested = true
+        requestFlush()
+    }
 
-                mLogWriter = FileWriter(mLogFile, true)
-            } catch (e: IOException) {
-                Log.e(TAG, "clearLogs: $e")
+    private fun requestFlush() {
+        mFlushRequested = true
+        mWriterThread?.let { LockSupport.unpark(it) }
+    }
+
+    // Waits (at most timeoutMs) until everything logged so far has been written to the log file.
+    // Not to be called from the sync threads.
+    fun sync(timeoutMs: Long = SYNC_TIMEOUT_MS) {
+        val target = mTail.get()
+        val deadline = System.currentTimeMillis() + timeoutMs
+        flush()
+        synchronized(mFlushedLock) {
+            while (mFlushedPosition < target) {
+                val remaining = deadline - System.currentTimeMillis()
+                if (remaining <= 0) {
+                    return
+                }
+                mFlushedLock.wait(remaining)
             }
         }
     }
 
-    private fun truncateLogs() {
-        synchronized(this) {
-            val writer = mLogWriter ?: return
-            val context = mContext ?: return
-            var logFile = mLogFile ?: return
+    // Segments of the log of the given process (oldest first), including the current one. The list
+    // can be passed to openSegment() until the next call to segments() or exportArchive().
+    fun segments(name: String): List<File> {
+        val logDir = mLogDir ?: return emptyList()
+        return runMaintenance { logSegments(logDir, name) } ?: emptyList()
+    }
+
+    private fun logSegments(logDir: File, name: String): List<File> {
+        val current = File(logDir, "$name$SEGMENT_SUFFIX")
+        return if (current.exists()) oldSegments(name) + current else oldSegments(name)
+    }
 
+    // Bundles all segments of all logs into a single zip file inside the log directory, which can
+    // be shared through the FileProvider. Returns null on error. Blocks, must not be called from
+    // the UI thread.
+    fun exportArchive(): File? {
+        sync()
+        val logDir = mLogDir ?: return null
+        return runMaintenance {
+            val archive = File(logDir, ARCHIVE_FILE)
             try {
-                writer.close()
-
-                val tmpFile = File(context.filesDir, LOG_FILE + ".old")
-                if (tmpFile.exists()) {
-                    tmpFile.delete()
-                }
-                logFile.renameTo(tmpFile)
-                logFile = File(context.filesDir, LOG_FILE)
-                val inChan = FileInputStream(tmpFile).channel
-                val outChan = FileOutputStream(logFile, false).channel
-                inChan.transferTo(Math.max(0, tmpFile.length() - TRIM_LOG_SIZE), TRIM_LOG_SIZE.toLong(), outChan)
-                inChan.close()
-                tmpFile.delete()
-                outChan.close()
-
-                mLogFile = logFile
-                mLogWriter = FileWriter(logFile, true)
+                ZipOutputStream(FileOutputStream(archive)).use { zip ->
+                    LOGS.flatMap { logSegments(logDir, it) }.forEach { segment ->
+                        zip.putNextEntry(ZipEntry(segment.name.removeSuffix(GZ_SUFFIX)))
+                        try {
+                            openSegment(segment).use { it.copyTo(zip) }
+                        } catch (e: FileNotFoundException) {
+                            // The current segment of the other process has just been rotated or
+                            // the segment has just been compressed, let's not fail because of that
+                        }
+                        zip.closeEntry()
+                    }
+                }
+                archive
             } catch (e: IOException) {
-                Log.e(TAG, "truncateLogs: $e")
+                Log.e(TAG, "exportArchive: $e")
+                null
+            }
+        }
+    }
+
+    private fun <T> runMaintenance(task: () -> T): T? {
+        return try {
+            mMaintenance.submit(Callable { task() }).get(MAINTENANCE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        } catch (e: Exception) {
+            when (e) {
+                is ExecutionException, is TimeoutException, is InterruptedException -> {
+                    Log.e(TAG, "runMaintenance: $e")
+                    null
+                }
+                else -> throw e
+            }
+        }
+    }
+
+    // Runs on the writer thread with mFileLock held
+    private fun rotate() {
+        val writer = mLogWriter ?: return
+        val logDir = mLogDir ?: return
+        val logFile = mLogFile ?: return
+
+        try {
+            writer.close()
+        } catch (e: IOException) {
+            Log.e(TAG, "rotate: $e")
+        }
+        // Continue after the segments left over from the previous runs of the process
+        val last = logDir.listFiles()?.mapNotNull { segmentNumber(mName, it.name) }?.maxOrNull() ?: 0
+        mNextSegment = maxOf(mNextSegment, last + 1)
+        val segment = File(logDir, "$mName-${mNextSegment++}$SEGMENT_SUFFIX")
+        if (!logFile.renameTo(segment)) {
+            Log.e(TAG, "Failed to rotate log to ${segment.name}")
+        }
+        openLog(logFile, false)
+
+        val rotation = rotation
+        mMaintenance.execute {
+            if (rotation.compress) {
+                compress(segment)
+            }
+            prune(rotation)
+        }
+    }
+
+    private fun compress(segment: File) {
+        if (!segment.exists()) {
+            return
+        }
+        val tmp = File(segment.path + GZ_SUFFIX + TMP_SUFFIX)
+        try {
+            FileInputStream(segment).use { input ->
+                GZIPOutputStream(FileOutputStream(tmp)).use { input.copyTo(it) }
+            }
+            if (tmp.renameTo(File(segment.path + GZ_SUFFIX))) {
+                segment.delete()
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to compress ${segment.name}: $e")
+            tmp.delete()
+        }
+    }
+
+    // Removes the oldest segments over the segment count or size budget
+    private fun prune(rotation: Rotation) {
+        var count = 1 // the current segment
+        var bytes = rotation.segmentSize
+        oldSegments(mName).asReversed().forEach {
+            val size = it.length()
+            if (count < rotation.maxSegments && bytes + size <= rotation.maxTotalBytes) {
+                count++
+                bytes += size
+            } else {
+                it.delete()
             }
         }
     }
 
+    // Old segments of the given log, oldest first. Runs on the maintenance thread.
+    private fun oldSegments(name: String): List<File> {
+        val files = mLogDir?.listFiles() ?: return emptyList()
+        return files.mapNotNull { file -> segmentNumber(name, file.name)?.let { Pair(it, file) } }
+                .sortedBy { it.first }
+                .map { it.second }
+    }
+
+    // Runs with mFileLock held, or from init()
+    private fun openLog(logFile: File, append: Boolean = true) {
+        try {
+            mLogWriter = BufferedWriter(FileWriter(logFile, append), WRITE_BUFFER_SIZE)
+            mLogSize = logFile.length()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to open log: $e")
+            mLogWriter = null
+            mLogSize = 0
+        }
+    }
+
+    private fun closeLog() {
+        try {
+            mLogWriter?.close()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to close log: $e")
+        }
+        mLogWriter = null
+    }
+
     private fun init(context: Context) {
         synchronized(this) {
             if (mContext != null) {
                 return
             }
 
-            val logDir = File(context.filesDir, "logs")
+            val logDir = File(context.filesDir, LOG_DIR)
             if (!logDir.exists()) {
                 if (!logDir.mkdir()) {
                     Log.e(TAG, "Failed to create logs directory")
@@ -112,76 +526,256 @@ class Logger private constructor() {
                 }
             }
 
-            val logFile = File(context.filesDir, LOG_FILE)
-            try {
-                mLogWriter = FileWriter(logFile, true)
-                mLogFile = logFile
-            } catch (e: IOException) {
-                Log.e(TAG, "Failed to open log: $e")
-                mLogWriter = null
-                mLogFile = null
-            }
+            mLogDir = logDir
+            // Left over from an interrupted compression
+            logDir.listFiles()?.filter { it.name.endsWith(TMP_SUFFIX) }?.forEach { it.delete() }
+
+            mName = processLogName()
+            val logFile = File(logDir, "$mName$SEGMENT_SUFFIX")
+            mLogFile = logFile
+            openLog(logFile)
 
             mContext = context
+
+            mWriterThread = Thread({ writerLoop() }, "logger-writer").apply {
+                isDaemon = true
+                priority = Thread.MIN_PRIORITY
+                start()
+            }
         }
     }
 
+    // Whether a line of the given level would end up anywhere
+    fun isLoggable(level: Level) = level >= minLevel || level >= mMinLogCatLvl
+
     fun debug(tag: String, msg: String) {
-        doLog(LogLevel.DEBUG, tag, msg)
+        log(Level.DEBUG, tag, msg)
+    }
+
+    inline fun debug(tag: String, msg: () -> String) {
+        if (isLoggable(Level.DEBUG)) {
+            log(Level.DEBUG, tag, msg())
+        }
     }
 
     fun info(tag: String, msg: String) {
-        doLog(LogLevel.INFO, tag, msg)
+        log(Level.INFO, tag, msg)
+    }
+
+    inline fun info(tag: String, msg: () -> String) {
+        if (isLoggable(Level.INFO)) {
+            log(Level.INFO, tag, msg())
+        }
     }
 
     fun warning(tag: String, msg: String) {
-        doLog(LogLevel.WARNING, tag, msg)
+        log(Level.WARNING, tag, msg)
     }
 
     fun error(tag: String, msg: String) {
-        doLog(LogLevel.ERROR, tag, msg)
+        log(Level.ERROR, tag, msg)
     }
 
-    private fun doLog(level: LogLevel, tag: String, msg: String) {
-        val logMsg = "${mDateFormat.format(Date())} $level/$tag: $msg\n"
-        synchronized(this) {
-            val writer = mLogWriter ?: return
-            val logFile = mLogFile ?: return
-            try {
-                writer.write(logMsg)
-                writer.flush()
-            } catch (e: IOException) {
-                Log.e(TAG, "doLog: $e")
+    fun log(level: Level, tag: String, msg: String) {
+        if (level >= mMinLogCatLvl) {
+            Log.println(level.toInt(), tag, msg)
+        }
+        if (level < minLevel) {
+            return
+        }
+
+        if (!enqueue(System.currentTimeMillis(), level, tag, msg)) {
+            mDropped.incrementAndGet()
+        }
+        if (level == Level.ERROR) {
+            requestFlush()
+        } else if (mTail.get() - mHead >= BUFFER_CAPACITY / 2) {
+            // Don't wait for the writer to wake up on its own, the buffer would overflow
+            mWriterThread?.let { LockSupport.unpark(it) }
+        }
+    }
+
+    private fun enqueue(time: Long, level: Level, tag: String, msg: String): Boolean {
+        while (true) {
+            val pos = mTail.get()
+            val slot = mSlots[(pos and BUFFER_MASK).toInt()]
+            val diff = slot.seq - pos
+            if (diff == 0L) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    slot.time = time
+                    slot.level = level
+                    slot.tag = tag
+                    slot.msg = msg
+                    slot.seq = pos + 1 // publishes the line to the writer
+                    return true
+                }
+            } else if (diff < 0) {
+                // The buffer is full
+                return false
             }
+            // Otherwise another producer has taken this slot in the meantime, try the next one
+        }
+    }
 
-            if (logFile.length() >= MAX_LOG_SIZE) {
-                truncateLogs()
+    private fun writerLoop() {
+        var lastFlush = System.currentTimeMillis()
+        var lastFileCheck = lastFlush
+        var unflushed = false
+        while (true) {
+            var written = 0
+            synchronized(mFileLock) {
+                val start = System.currentTimeMillis()
+                if (start - lastFileCheck >= FLUSH_INTERVAL_MS) {
+                    lastFileCheck = start
+                    // The logs have been cleared by the other process
+                    val logFile = mLogFile
+                    if (logFile != null && !logFile.exists()) {
+                        closeLog()
+                        openLog(logFile)
+                    }
+                }
+                while (true) {
+                    val pos = mHead
+                    val slot = mSlots[(pos and BUFFER_MASK).toInt()]
+                    if (slot.seq != pos + 1) {
+                        break
+                    }
+                    mRepeatFilter.filter(slot.time, slot.level, slot.tag, slot.msg, mSink)
+                    slot.tag = ""
+                    slot.msg = ""
+                    slot.seq = pos + BUFFER_CAPACITY // hands the slot back to the producers
+                    mHead = pos + 1
+                    written++
+                }
+
+                val now = System.currentTimeMillis()
+                val logSize = mLogSize
+                if (mEndWindowRequested) {
+                    mEndWindowRequested = false
+                    mRepeatFilter.endWindow(now, mSink)
+                } else {
+                    mRepeatFilter.tick(now, mSink)
+                }
+
+                val dropped = mDropped.getAndSet(0)
+                if (dropped > 0) {
+                    writeLine(now, Level.WARNING, TAG, "$dropped log lines dropped")
+                }
+
+                unflushed = unflushed || mLogSize != logSize || written > 0
+                if (mLogSize >= rotation.segmentSize) {
+                    // rotate() closes (and thus flushes) the segment
+                    rotate()
+                    mFlushRequested = false
+                    lastFlush = System.currentTimeMillis()
+                    unflushed = false
+                }
+                if (unflushed && (mFlushRequested || now - lastFlush >= FLUSH_INTERVAL_MS)) {
+                    mFlushRequested = false
+                    try {
+                        mLogWriter?.flush()
+                    } catch (e: IOException) {
+                        Log.e(TAG, "flush: $e")
+                    }
+                    lastFlush = now
+                    unflushed = false
+                } else if (!unflushed) {
+                    mFlushRequested = false
+                }
             }
 
-            if (level.toInt() >= mMinLogCatLvl.toInt()) {
-                Log.println(level.toInt(), tag, msg)
+            if (!unflushed) {
+                mFlushedPosition = mHead
+                synchronized(mFlushedLock) {
+                    mFlushedLock.notifyAll()
+                }
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(WRITER_POLL_INTERVAL_MS))
             }
         }
     }
 
+    private fun writeLine(time: Long, level: Level, tag: String, msg: String) {
+        val line = mLine
+        line.setLength(0)
+        mTimestampFormat.append(time, line)
+        line.append(' ').append(level.char).append('/').append(tag).append(": ").append(msg).append('\n')
+        write(line)
+    }
+
+    private fun write(line: StringBuilder) {
+        val writer = mLogWriter ?: return
+        // Copy through a reused buffer, Writer.append() would turn the line into a new String
+        if (mCharBuffer.size < line.length) {
+            mCharBuffer = CharArray(Integer.highestOneBit(line.length) * 2)
+        }
+        line.getChars(0, line.length, mCharBuffer, 0)
+        try {
+            writer.write(mCharBuffer, 0, line.length)
+            mLogSize += line.length
+        } catch (e: IOException) {
+            Log.e(TAG, "write: $e")
+        }
+    }
+
     companion object {
 
         private const val TAG = "LOG"
 
-        const val LOG_FILE = "logs/sync.log"
+        // Names of the logs of the sync and the app process
+        const val SYNC_LOG = "sync"
+        const val APP_LOG = "app"
+        private val LOGS = listOf(SYNC_LOG, APP_LOG)
+
+        private const val LOG_DIR = "logs"
+        private const val SEGMENT_SUFFIX = ".log"
+        private const val GZ_SUFFIX = ".gz"
+        private const val TMP_SUFFIX = ".tmp"
+        private const val ARCHIVE_FILE = "sync-logs.zip"
+        private val SEGMENT_PATTERN = Regex("(\\w+)-(\\d+)\\$SEGMENT_SUFFIX(\\$GZ_SUFFIX)?")
+        private const val MAINTENANCE_TIMEOUT_MS = 10000L
+
+        private const val BUFFER_CAPACITY = 4096 // must be a power of two
+        private const val BUFFER_MASK = (BUFFER_CAPACITY - 1).toLong()
+        private const val WRITE_BUFFER_SIZE = 32 * 1024
+        private const val FLUSH_INTERVAL_MS = 1000L
+        private const val WRITER_POLL_INTERVAL_MS = 100L
+        private const val SYNC_TIMEOUT_MS = 1000L
+
+        private fun segmentNumber(log: String, fileName: String): Long? {
+            val match = SEGMENT_PATTERN.matchEntire(fileName) ?: return null
+            return if (match.groupValues[1] == log) match.groupValues[2].toLongOrNull() else null
+        }
 
-        private const val MAX_LOG_SIZE = 256 * 1024 // 256KB
-        private const val TRIM_LOG_SIZE = 128 * 1024 // 128KB
+        // The sync adapter runs in the ":sync" process, everything else in the app process
+        private fun processLogName(): String {
+            val process = try {
+                File("/proc/self/cmdline").readText().trim('\u0000', ' ')
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to get process name: $e")
+                ""
+            }
+            return if (process.endsWith(":sync")) SYNC_LOG else APP_LOG
+        }
+
+        // Opens a segment returned by segments() for reading, decompressing it if needed
+        @Throws(IOException::class)
+        fun openSegment(segment: File): InputStream {
+            val input = FileInputStream(segment)
+            return if (segment.name.endsWith(GZ_SUFFIX)) GZIPInputStream(input) else input
+        }
 
-        private var sInstance: WeakReference<Logger>? = null
+        // Strong reference, the writer thread keeps the logger alive anyway
+        private var sInstance: Logger? = null
 
         @Synchronized
         fun getInstance(context: Context): Logger {
-            var logger: Logger? = sInstance?.get()
+            var logger = sInstance
             if (logger == null) {
                 logger = Logger()
-                sInstance = WeakReference(logger)
-                logger.init(context)
+                sInstance = logger
+                logger.init(context.applicationContext ?: context)
             }
 
             return logger
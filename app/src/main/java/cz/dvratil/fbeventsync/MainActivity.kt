@@ -38,6 +38,7 @@ import android.text.method.LinkMovementMethod
 import android.view.MenuItem
 import android.widget.TextView
 import android.widget.Toast
+
 import java.io.File
 
 
@@ -89,29 +90,18 @@ class MainActivity : AppCompatActivity() {
                     startActivity(Intent(this, LogViewActivity::class.java))
                     true
                 }
+                R.id.nav_sync_history -> {
+                    mDrawerLayout.closeDrawers()
+                    startActivity(Intent(this, SyncHistoryActivity::class.java))
+                    true
+                }
                 R.id.nav_report_bug -> {
                     mDrawerLayout.closeDrawers()
-                    val logFile = File(filesDir, Logger.LOG_FILE)
-                    if (!logFile.exists() || !logFile.canRead()) {
-                        Toast.makeText(this, R.string.log_error_sending_log_toast, Toast.LENGTH_SHORT).show()
-                        true
-                    }
-
-                    val contentUri = FileProvider.getUriForFile(
-                            this, getString(R.string.fileprovider_authority), logFile)
-                    startActivity(Intent.createChooser(
-                            Intent(Intent.ACTION_SEND).apply {
-                                type = "message/rfc822"
-                                putExtra(Intent.EXTRA_EMAIL, arrayOf("me@dvratil.cz"))
-                                putExtra(Intent.EXTRA_SUBJECT, "FBEventSync Issue")
-                                putExtra(Intent.EXTRA_TEXT,
-                                        "${getString(R.string.log_email_template)}\n\n\n" +
-                                                "App ID: ${BuildConfig.APPLICATION_ID}\n" +
-                                                "App version: ${BuildConfig.VERSION_CODE} (${BuildConfig.VERSION_NAME})\n" +
-                                                "App build: ${BuildConfig.BUILD_TYPE}\n" +
-                                                "OS: ${Build.VERSION.RELEASE} (API ${Build.VERSION.SDK_INT})\n")
-                                putExtra(Intent.EXTRA_STREAM, contentUri)
-                            }, resources.getString(R.string.log_send_email_action)))
+                    // Collecting the logs may take a while
+                    Thread {
+                        val logFile = Logger.getInstance(this).exportArchive()
+                        runOnUiThread { reportBug(logFile) }
+                    }.start()
                     true
                 }
                 R.id.nav_faq -> {
@@ -180,6 +170,29 @@ class MainActivity : AppCompatActivity() {
         }
     }
 
+    private fun reportBug(logFile: File?) {
+        if (logFile == null || !logFile.canRead()) {
+            Toast.makeText(this, R.string.log_error_sending_log_toast, Toast.LENGTH_SHORT).show()
+            return
+        }
+
+        val contentUri = FileProvider.getUriForFile(
+                this, getString(R.string.fileprovider_authority), logFile)
+        startActivity(Intent.createChooser(
+                Intent(Intent.ACTION_SEND).apply {
+                    type = "message/rfc822"
+                    putExtra(Intent.EXTRA_EMAIL, arrayOf("me@dvratil.cz"))
+                    putExtra(Intent.EXTRA_SUBJECT, "FBEventSync Issue")
+                    putExtra(Intent.EXTRA_TEXT,
+                            "${getString(R.string.log_email_template)}\n\n\n" +
+                                    "App ID: ${BuildConfig.APPLICATION_ID}\n" +
+                                    "App version: ${BuildConfig.VERSION_CODE} (${BuildConfig.VERSION_NAME})\n" +
+                                    "App build: ${BuildConfig.BUILD_TYPE}\n" +
+                                    "OS: ${Build.VERSION.RELEASE} (API ${Build.VERSION.SDK_INT})\n")
+                    putExtra(Intent.EXTRA_STREAM, contentUri)
+                }, resources.getString(R.string.log_send_email_action)))
+    }
+
     private fun registerSyncIfNeeded() {
         val syncs = ContentResolver.getCurrentSyncs()
         val accounts = AccountManager.get(this).getAccountsByType(getString(R.string.account_type));
@@ -65,6 +65,15 @@ class Preferences(private var mContext: Context){
         mPrefs.putBoolean(mContext.getString(R.string.pref_sync_fblink), link)
     }
 
+    internal fun debugLogging(): Boolean {
+        return mPrefs.getBoolean(mContext.getString(R.string.pref_debug_logging),
+                mContext.resources.getBoolean(R.bool.debug_logging_default))
+    }
+
+    internal fun setDebugLogging(debugLogging: Boolean) {
+        mPrefs.putBoolean(mContext.getString(R.string.pref_debug_logging), debugLogging)
+    }
+
     internal fun attendingCalendarEnabled(): Boolean {
         return mPrefs.getBoolean(mContext.getString(R.string.pref_calendar_attending_enabled), true)
     }
@@ -272,30 +281,6 @@ class Preferences(private var mContext: Context){
         mPrefs.putInt(mContext.getString(R.string.pref_calendar_birthday_color), color)
     }
 
-    internal fun lastSyncTime(): Int {
-        return mPrefs.getInt(mContext.getString(R.string.cfg_last_sync_time), 0)
-    }
-
-    internal fun setLastSyncTime(lastSync: Int) {
-        mPrefs.putInt(mContext.getString(R.string.cfg_last_sync_time), lastSync)
-    }
-
-    internal fun syncsPerHour(): Int {
-        return mPrefs.getInt(mContext.getString(R.string.cfg_syncs_per_hour), 0)
-    }
-
-    internal fun setSyncsPerHour(syncsPerHour: Int) {
-        mPrefs.putInt(mContext.getString(R.string.cfg_syncs_per_hour), syncsPerHour)
-    }
-
-    internal fun lastVersion(): Int {
-        return mPrefs.getInt(mContext.getString(R.string.cfg_last_version), 0)
-    }
-
-    internal fun setLastVersion(lastVersion: Int) {
-        mPrefs.putInt(mContext.getString(R.string.cfg_last_version), lastVersion)
-    }
-
     internal fun prefsVersion(): Int {
         return mPrefs.getInt(mContext.getString(R.string.cfg_prefs_version), 0)
     }
@@ -0,0 +1,157 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+// Open-addressing hash map from String to a primitive long. Unlike HashMap<String, Long> it does
+// not box the values and does not allocate an entry object for each mapping, it just keeps two
+// parallel arrays. Removed entries are replaced by a tombstone, so that lookups of keys further
+// down the same probe sequence keep working; tombstones are dropped when the table is rehashed.
+class StringLongMap(expectedSize: Int = DEFAULT_CAPACITY) {
+
+    private var mKeys = arrayOfNulls<Any>(capacityFor(expectedSize))
+    private var mValues = LongArray(mKeys.size)
+    // Number of live entries
+    private var mSize = 0
+    // Number of live entries and tombstones
+    private var mUsed = 0
+
+    val size: Int
+        get() = mSize
+
+    fun isEmpty() = mSize == 0
+
+    fun containsKey(key: String) = indexOf(key) >= 0
+
+    fun get(key: String, defaultValue: Long): Long {
+        val idx = indexOf(key)
+        return if (idx < 0) defaultValue else mValues[idx]
+    }
+
+    fun put(key: String, value: Long) {
+        val mask = mKeys.size - 1
+        var idx = hash(key) and mask
+        var tombstone = -1
+        while (true) {
+            val k = mKeys[idx]
+            if (k == null) {
+                break
+            } else if (k === TOMBSTONE) {
+                if (tombstone < 0) {
+                    tombstone = idx
+                }
+            } else if (k == key) {
+                mValues[idx] = value
+                return
+            }
+            idx = (idx + 1) and mask
+        }
+
+        if (tombstone >= 0) {
+            idx = tombstone
+        } else {
+            mUsed++
+        }
+        mKeys[idx] = key
+        mValues[idx] = value
+        mSize++
+
+        if (mUsed * 4 > mKeys.size * 3) {
+            rehash(capacityFor(mSize))
+        }
+    }
+
+    // Returns true if the key was present in the map
+    fun remove(key: String): Boolean {
+        val idx = indexOf(key)
+        if (idx < 0) {
+            return false
+        }
+        mKeys[idx] = TOMBSTONE
+        mSize--
+        return true
+    }
+
+    fun clear() {
+        mKeys.fill(null)
+        mSize = 0
+        mUsed = 0
+    }
+
+    fun values(): LongArray {
+        val result = LongArray(mSize)
+        var i = 0
+        forEach { _, value -> result[i++] = value }
+        return result
+    }
+
+    fun forEach(action: (String, Long) -> Unit) {
+        for (idx in 0 until mKeys.size) {
+            val k = mKeys[idx]
+            if (k != null && k !== TOMBSTONE) {
+                action(k as String, mValues[idx])
+            }
+        }
+    }
+
+    private fun indexOf(key: String): Int {
+        val mask = mKeys.size - 1
+        var idx = hash(key) and mask
+        while (true) {
+            val k = mKeys[idx] ?: return -1
+            if (k !== TOMBSTONE && k == key) {
+                return idx
+            }
+            idx = (idx + 1) and mask
+        }
+    }
+
+    private fun rehash(capacity: Int) {
+        val oldKeys = mKeys
+        val oldValues = mValues
+        mKeys = arrayOfNulls(capacity)
+        mValues = LongArray(capacity)
+        mSize = 0
+        mUsed = 0
+        for (idx in 0 until oldKeys.size) {
+            val k = oldKeys[idx]
+            if (k != null && k !== TOMBSTONE) {
+                put(k as String, oldValues[idx])
+            }
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 16
+        private val TOMBSTONE = Any()
+
+        // Smallest power of two that keeps the table at most half full
+        private fun capacityFor(size: Int): Int {
+            var capacity = DEFAULT_CAPACITY
+            while (capacity < size * 2) {
+                capacity = capacity shl 1
+            }
+            return capacity
+        }
+
+        // String.hashCode() of the FB IDs differs mostly in the low bits, spread it over the table
+        private fun hash(key: String): Int {
+            val h = key.hashCode() * -0x61c88647
+            return h xor (h ushr 16)
+        }
+    }
+}
@@ -24,13 +24,17 @@ import android.content.SyncResult
 import android.net.Uri
 import android.provider.CalendarContract
 
-class SyncContext(val context: Context,
-                  val account: Account,
-                  val accessToken: String,
-                  val contentProviderClient: ContentProviderClient,
-                  val syncResult: SyncResult,
-                  val preferences: Preferences,
-                  val logger: Logger) {
+class SyncContext @JvmOverloads constructor(val context: Context,
+                                            val account: Account,
+                                            val accessToken: String,
+                                            val contentProviderClient: ContentProviderClient,
+                                            val syncResult: SyncResult,
+                                            val preferences: Preferences,
+                                            val logger: Logger,
+                                            val run: SyncHistory.Run = SyncHistory.Run(account.name),
+                                            val settings: SyncSettings = SyncSettings.load(preferences)) {
+
+    val timings = SyncStageTimings()
 
     internal fun contentUri(provider: Uri): Uri {
         return provider.buildUpon()
@@ -0,0 +1,199 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.accounts.Account
+import android.accounts.AccountManager
+import android.content.Context
+
+import java.io.PrintWriter
+import java.text.SimpleDateFormat
+import java.util.Collections
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+// In-process counters of the sync machinery, dumped by CalendarSyncService.dump(), so that
+// a running device can be profiled with `adb shell dumpsys activity service CalendarSyncService`
+// without having to turn on debug logging. Everything here is cheap to update and lives only
+// as long as the sync process.
+object SyncDiagnostics {
+
+    enum class Metric {
+        HTTP_FETCH,
+        PARSE,
+        INDEX_BUILD,
+        APPLY,
+        FINALIZE
+    }
+
+    enum class FeedResult {
+        NOT_MODIFIED, // server responded with 304
+        UNCHANGED,    // same content as last time
+        UPDATED,
+        FAILED
+    }
+
+    // Latency histogram with power-of-two millisecond buckets: bucket 0 counts values below 1ms,
+    // bucket i values in [2^(i-1), 2^i) ms, the last bucket everything above.
+    class Histogram {
+        private val mBuckets = AtomicLongArray(BUCKETS)
+        private val mCount = AtomicLong()
+        private val mSum = AtomicLong()
+        private val mMax = AtomicLong()
+
+        fun add(ms: Long) {
+            val bucket = if (ms <= 0) 0 else minOf(64 - java.lang.Long.numberOfLeadingZeros(ms), BUCKETS - 1)
+            mBuckets.incrementAndGet(bucket)
+            mCount.incrementAndGet()
+            mSum.addAndGet(ms)
+            while (true) {
+                val max = mMax.get()
+                if (ms <= max || mMax.compareAndSet(max, ms)) {
+                    break
+                }
+            }
+        }
+
+        val count get() = mCount.get()
+
+        // Upper bound of the bucket that contains the p-th percentile
+        fun percentile(p: Int): Long {
+            val count = mCount.get()
+            if (count == 0L) {
+                return 0
+            }
+            val rank = Math.ceil(p / 100.0 * count).toLong().coerceAtLeast(1)
+            var seen = 0L
+            for (i in 0 until BUCKETS) {
+                seen += mBuckets.get(i)
+                if (seen >= rank) {
+                    return minOf(upperBound(i), mMax.get())
+                }
+            }
+            return mMax.get()
+        }
+
+        fun dump(writer: PrintWriter, name: String) {
+            val count = mCount.get()
+            val mean = if (count == 0L) 0 else mSum.get() / count
+            writer.println(String.format(Locale.US, "  %-12s n=%-6d mean=%-7d p50<=%-7d p95<=%-7d p99<=%-7d max=%d",
+                    name, count, mean, percentile(50), percentile(95), percentile(99), mMax.get()))
+            if (count > 0) {
+                val buckets = (0 until BUCKETS).filter { mBuckets.get(it) > 0 }
+                        .joinToString(" ") { "<${upperBound(it)}:${mBuckets.get(it)}" }
+                writer.println("               $buckets")
+            }
+        }
+
+        private fun upperBound(bucket: Int) = if (bucket == BUCKETS - 1) Long.MAX_VALUE else 1L shl bucket
+
+        companion object {
+            private const val BUCKETS = 20 // the last regular bucket ends at ~4.4 minutes
+        }
+    }
+
+    private val mHistograms = Metric.values().map { Histogram() }
+    private val mFeedResults = AtomicLongArray(FeedResult.values().size)
+    private val mEventsUnchanged = AtomicLong()
+    private val mEventsWritten = AtomicLong()
+
+    private val mProducers = Collections.newSetFromMap(ConcurrentHashMap<ICalEventProducer, Boolean>())
+    private val mLastRuns = ConcurrentHashMap<String /* account */, SyncHistory.Run>()
+    private val mLastCalendarSyncs = ConcurrentHashMap<String /* account */, MutableMap<String /* calendar */, String>>()
+
+    fun record(metric: Metric, ms: Long) = mHistograms[metric.ordinal].add(ms)
+
+    fun recordFeed(result: FeedResult) {
+        mFeedResults.incrementAndGet(result.ordinal)
+    }
+
+    fun recordEvents(unchanged: Int, written: Int) {
+        mEventsUnchanged.addAndGet(unchanged.toLong())
+        mEventsWritten.addAndGet(written.toLong())
+    }
+
+    fun recordRun(run: SyncHistory.Run) {
+        mLastRuns[run.account] = run
+    }
+
+    fun recordCalendarSync(account: Account, calendar: String, summary: String) {
+        mLastCalendarSyncs.getOrPut(account.name) { ConcurrentHashMap() }[calendar] =
+                "${formatTime(System.currentTimeMillis())} $summary"
+    }
+
+    fun producerStarted(producer: ICalEventProducer) {
+        mProducers.add(producer)
+    }
+
+    fun producerFinished(producer: ICalEventProducer) {
+        mProducers.remove(producer)
+    }
+
+    fun dump(context: Context, writer: PrintWriter) {
+        writer.println("Latencies (ms):")
+        Metric.values().forEach { mHistograms[it.ordinal].dump(writer, it.name.toLowerCase(Locale.US)) }
+
+        writer.println()
+        writer.println("HTTP:")
+        val requests = HttpTransport.Stats.requests.get()
+        writer.println("  requests=$requests bytes=${HttpTransport.Stats.bytesReceived.get()} " +
+                "avgLatency=${if (requests == 0L) 0 else HttpTransport.Stats.totalLatencyMs.get() / requests}ms")
+        HttpTransport.Stats.recent.forEach {
+            writer.println("    ${it.status} ${it.latencyMs}ms ${it.bytes}B ${it.uri}")
+        }
+
+        writer.println()
+        writer.println("Queues:")
+        writer.println("  running syncs=${CalendarSyncAdapter.runningSyncs()}")
+        writer.println("  downloads active=${CalendarSyncAdapter.activeDownloads()} pending=${CalendarSyncAdapter.pendingDownloads()}")
+        mProducers.forEach { writer.println("  parser queue=${it.queueDepth}/${ICalEventProducer.QUEUE_CAPACITY}") }
+
+        writer.println()
+        writer.println("Caches:")
+        val feeds = FeedResult.values().map { mFeedResults.get(it.ordinal) }
+        val feedHits = feeds[FeedResult.NOT_MODIFIED.ordinal] + feeds[FeedResult.UNCHANGED.ordinal]
+        writer.println("  feeds: ${FeedResult.values().joinToString(" ") { "${it.name.toLowerCase(Locale.US)}=${feeds[it.ordinal]}" }} " +
+                "hitRate=${rate(feedHits, feeds.sum())}")
+        val unchanged = mEventsUnchanged.get()
+        writer.println("  event fingerprints: unchanged=$unchanged written=${mEventsWritten.get()} " +
+                "hitRate=${rate(unchanged, unchanged + mEventsWritten.get())}")
+
+        writer.println()
+        writer.println("Accounts:")
+        val now = (System.currentTimeMillis() / 1000).toInt()
+        AccountManager.get(context).getAccountsByType(context.getString(R.string.account_type)).forEach { account ->
+            writer.println("  ${account.name}:")
+            writer.println("    throttle: ${SyncThrottle(context, account).describe(now)}")
+            mLastRuns[account.name]?.let { run ->
+                writer.println("    last sync: ${formatTime(run.startTime)} ${run.outcome.name.toLowerCase(Locale.US)}" +
+                        "${run.reason?.let { " ($it)" } ?: ""} ${run.durationMs}ms")
+            }
+            mLastCalendarSyncs[account.name]?.toSortedMap()?.forEach { (calendar, summary) ->
+                writer.println("    $calendar: $summary")
+            }
+        }
+    }
+
+    private fun rate(hits: Long, total: Long) =
+            if (total == 0L) "-" else String.format(Locale.US, "%.1f%%", 100.0 * hits / total)
+
+    private fun formatTime(time: Long) = SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(Date(time))
+}
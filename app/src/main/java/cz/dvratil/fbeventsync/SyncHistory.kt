@@ -0,0 +1,245 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.content.ContentValues
+import android.content.Context
+import android.content.SyncResult
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import android.database.sqlite.SQLiteOpenHelper
+
+// Keeps a record of the last MAX_RUNS syncs with per-stage timings and I/O counters, so that we
+// can tell whether a slow sync was caused by the network, the parser or the calendar provider.
+class SyncHistory private constructor(context: Context)
+    : SQLiteOpenHelper(context, DB_NAME, null, DB_VERSION) {
+
+    enum class Outcome {
+        SUCCESS,
+        FAILED,
+        SKIPPED,
+        THROTTLED
+    }
+
+    // A single sync run. It's filled in by the sync thread as the sync progresses and recorded
+    // once the sync is over.
+    class Run(val account: String, val startTime: Long = System.currentTimeMillis()) {
+        var outcome = Outcome.SUCCESS
+        var reason: String? = null
+        var durationMs = 0L
+        val stageMs = LongArray(SyncStageTimings.Stage.values().size)
+        var bytesDownloaded = 0L
+        // The highest HTTP status of all feeds downloaded, so that an error is not masked by
+        // a successful download of the other feed
+        var httpStatus = 0
+        var eventsParsed = 0
+        var providerOps = 0
+        var added = 0L
+        var modified = 0L
+        var removed = 0L
+
+        fun skip(outcome: Outcome, reason: String) {
+            this.outcome = outcome
+            this.reason = reason
+        }
+
+        fun fail(reason: String) = skip(Outcome.FAILED, reason)
+
+        fun addDownload(statusCode: Int, bytes: Long) {
+            httpStatus = maxOf(httpStatus, statusCode)
+            bytesDownloaded += bytes
+        }
+
+        fun finish(timings: SyncStageTimings, syncResult: SyncResult) {
+            SyncStageTimings.Stage.values().forEach { stageMs[it.ordinal] = timings.millis(it) }
+            added = syncResult.stats.numInserts
+            modified = syncResult.stats.numUpdates
+            removed = syncResult.stats.numDeletes
+            if (outcome == Outcome.SUCCESS && syncResult.hasError()) {
+                outcome = Outcome.FAILED
+            }
+        }
+
+        fun changes() = added + modified + removed
+    }
+
+    // Aggregated view of a list of runs. Only runs that actually synced are taken into account
+    // for the timings, skipped runs would just drag the percentiles down.
+    class Summary(runs: List<Run>) {
+        val total = runs.size
+        val failed = runs.count { it.outcome == Outcome.FAILED }
+        val skipped = runs.count { it.outcome == Outcome.SKIPPED || it.outcome == Outcome.THROTTLED }
+
+        private val mSynced = runs.filter { it.outcome == Outcome.SUCCESS }
+
+        val durationP50 = percentile(mSynced.map { it.durationMs }, 50)
+        val durationP95 = percentile(mSynced.map { it.durationMs }, 95)
+
+        fun stageP50(stage: SyncStageTimings.Stage) = percentile(mSynced.map { it.stageMs[stage.ordinal] }, 50)
+        fun stageP95(stage: SyncStageTimings.Stage) = percentile(mSynced.map { it.stageMs[stage.ordinal] }, 95)
+
+        val bytesP50 = percentile(mSynced.map { it.bytesDownloaded }, 50)
+
+        // Number of provider operations issued per changed event (an event may need several
+        // operations for its reminders and attendees), or 0 when nothing has changed.
+        val writeAmplification: Double = mSynced.sumBy { it.providerOps }.let { ops ->
+            val changes = mSynced.fold(0L) { acc, run -> acc + run.changes() }
+            if (changes == 0L) 0.0 else ops.toDouble() / changes
+        }
+
+        companion object {
+            // Nearest-rank percentile, 0 for an empty list
+            @JvmStatic
+            fun percentile(values: List<Long>, p: Int): Long {
+                if (values.isEmpty()) {
+                    return 0
+                }
+                val sorted = values.sorted()
+                val rank = Math.ceil(p / 100.0 * sorted.size).toInt()
+                return sorted[(rank - 1).coerceIn(0, sorted.size - 1)]
+            }
+        }
+    }
+
+    private val mLogger = Logger.getInstance(context)
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL(
+                "CREATE TABLE $RUNS_TABLE (" +
+                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        "account TEXT NOT NULL, " +
+                        "start_time INTEGER NOT NULL, " +
+                        "duration INTEGER NOT NULL, " +
+                        "outcome TEXT NOT NULL, " +
+                        "reason TEXT, " +
+                        "fetch_time INTEGER NOT NULL, " +
+                        "parse_time INTEGER NOT NULL, " +
+                        "classify_time INTEGER NOT NULL, " +
+                        "diff_time INTEGER NOT NULL, " +
+                        "apply_time INTEGER NOT NULL, " +
+                        "bytes_downloaded INTEGER NOT NULL, " +
+                        "http_status INTEGER NOT NULL, " +
+                        "events_parsed INTEGER NOT NULL, " +
+                        "provider_ops INTEGER NOT NULL, " +
+                        "added INTEGER NOT NULL, " +
+                        "modified INTEGER NOT NULL, " +
+                        "removed INTEGER NOT NULL)"
+        )
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        // Nothing to do yet
+    }
+
+    fun record(run: Run) {
+        val values = ContentValues()
+        values.put("account", run.account)
+        values.put("start_time", run.startTime)
+        values.put("duration", run.durationMs)
+        values.put("outcome", run.outcome.name)
+        values.put("reason", run.reason)
+        SyncStageTimings.Stage.values().forEach { values.put(stageColumn(it), run.stageMs[it.ordinal]) }
+        values.put("bytes_downloaded", run.bytesDownloaded)
+        values.put("http_status", run.httpStatus)
+        values.put("events_parsed", run.eventsParsed)
+        values.put("provider_ops", run.providerOps)
+        values.put("added", run.added)
+        values.put("modified", run.modified)
+        values.put("removed", run.removed)
+        try {
+            val db = writableDatabase
+            db.beginTransaction()
+            try {
+                db.insert(RUNS_TABLE, null, values)
+                db.delete(RUNS_TABLE, "id NOT IN (SELECT id FROM $RUNS_TABLE ORDER BY id DESC LIMIT $MAX_RUNS)", null)
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+        } catch (e: SQLiteException) {
+            mLogger.error(TAG, "Failed to record sync run: $e")
+        }
+    }
+
+    // Returns the most recent runs, newest first
+    fun recent(limit: Int = MAX_RUNS): List<Run> {
+        val runs = mutableListOf<Run>()
+        try {
+            readableDatabase.query(RUNS_TABLE, null, null, null, null, null, "id DESC", limit.toString()).use { cur ->
+                while (cur.moveToNext()) {
+                    val run = Run(cur.getString(cur.getColumnIndexOrThrow("account")),
+                                  cur.getLong(cur.getColumnIndexOrThrow("start_time")))
+                    run.durationMs = cur.getLong(cur.getColumnIndexOrThrow("duration"))
+                    run.outcome = try {
+                        Outcome.valueOf(cur.getString(cur.getColumnIndexOrThrow("outcome")))
+                    } catch (e: IllegalArgumentException) {
+                        Outcome.FAILED
+                    }
+                    run.reason = cur.getString(cur.getColumnIndexOrThrow("reason"))
+                    SyncStageTimings.Stage.values().forEach {
+                        run.stageMs[it.ordinal] = cur.getLong(cur.getColumnIndexOrThrow(stageColumn(it)))
+                    }
+                    run.bytesDownloaded = cur.getLong(cur.getColumnIndexOrThrow("bytes_downloaded"))
+                    run.httpStatus = cur.getInt(cur.getColumnIndexOrThrow("http_status"))
+                    run.eventsParsed = cur.getInt(cur.getColumnIndexOrThrow("events_parsed"))
+                    run.providerOps = cur.getInt(cur.getColumnIndexOrThrow("provider_ops"))
+                    run.added = cur.getLong(cur.getColumnIndexOrThrow("added"))
+                    run.modified = cur.getLong(cur.getColumnIndexOrThrow("modified"))
+                    run.removed = cur.getLong(cur.getColumnIndexOrThrow("removed"))
+                    runs.add(run)
+                }
+            }
+        } catch (e: SQLiteException) {
+            mLogger.error(TAG, "Failed to load sync history: $e")
+        }
+        return runs
+    }
+
+    fun clear() {
+        try {
+            writableDatabase.delete(RUNS_TABLE, null, null)
+        } catch (e: SQLiteException) {
+            mLogger.error(TAG, "Failed to clear sync history: $e")
+        }
+    }
+
+    private fun stageColumn(stage: SyncStageTimings.Stage) = "${stage.name.toLowerCase()}_time"
+
+    companion object {
+        private const val TAG = "SyncHistory"
+
+        private const val DB_NAME = "sync_history.db"
+        private const val DB_VERSION = 1
+
+        private const val RUNS_TABLE = "runs"
+
+        const val MAX_RUNS = 500
+
+        private var sInstance: SyncHistory? = null
+
+        @Synchronized
+        fun getInstance(context: Context): SyncHistory {
+            var history = sInstance
+            if (history == null) {
+                history = SyncHistory(context.applicationContext)
+                sInstance = history
+            }
+            return history
+        }
+    }
+}
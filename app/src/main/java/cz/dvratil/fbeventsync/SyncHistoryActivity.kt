@@ -0,0 +1,142 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.os.Bundle
+import android.support.v7.app.AppCompatActivity
+import android.support.v7.widget.LinearLayoutManager
+import android.support.v7.widget.RecyclerView
+import android.support.v7.widget.Toolbar
+import android.text.format.DateUtils
+import android.text.format.Formatter
+import android.view.LayoutInflater
+import android.view.Menu
+import android.view.MenuItem
+import android.view.View
+import android.view.ViewGroup
+import android.widget.TextView
+
+class SyncHistoryActivity : AppCompatActivity() {
+
+    private lateinit var mSummaryView: TextView
+    private val mAdapter = RunAdapter()
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        setContentView(R.layout.activity_sync_history)
+        setSupportActionBar(findViewById<View>(R.id.sync_history_toolbar) as Toolbar)
+
+        supportActionBar?.setDisplayHomeAsUpEnabled(true)
+
+        mSummaryView = findViewById(R.id.sync_history_summary)
+        findViewById<RecyclerView>(R.id.sync_history_list).apply {
+            adapter = mAdapter
+            layoutManager = LinearLayoutManager(context)
+        }
+    }
+
+    override fun onCreateOptionsMenu(menu: Menu): Boolean {
+        menuInflater.inflate(R.menu.menu_sync_history, menu)
+        return true
+    }
+
+    override fun onResume() {
+        super.onResume()
+
+        loadHistory()
+    }
+
+    override fun onOptionsItemSelected(item: MenuItem): Boolean {
+        return when (item.itemId) {
+            R.id.action_clear_history -> {
+                SyncHistory.getInstance(this).clear()
+                loadHistory()
+                true
+            }
+            else -> super.onOptionsItemSelected(item)
+        }
+    }
+
+    private fun loadHistory() {
+        val history = SyncHistory.getInstance(this)
+        Thread {
+            val runs = history.recent()
+            runOnUiThread {
+                mSummaryView.text = if (runs.isEmpty()) getString(R.string.sync_history_empty) else formatSummary(SyncHistory.Summary(runs))
+                mAdapter.setRuns(runs)
+            }
+        }.start()
+    }
+
+    private fun formatSummary(summary: SyncHistory.Summary): String {
+        val stages = resources.getStringArray(R.array.sync_history_stages)
+        val builder = StringBuilder()
+        builder.append(getString(R.string.sync_history_summary_runs, summary.total, summary.failed, summary.skipped)).append('\n')
+        builder.append(getString(R.string.sync_history_summary_duration, summary.durationP50, summary.durationP95)).append('\n')
+        SyncStageTimings.Stage.values().forEach {
+            builder.append("  ").append(getString(R.string.sync_history_summary_stage,
+                    stages[it.ordinal], summary.stageP50(it), summary.stageP95(it))).append('\n')
+        }
+        builder.append(getString(R.string.sync_history_summary_downloaded,
+                Formatter.formatShortFileSize(this, summary.bytesP50))).append('\n')
+        builder.append(getString(R.string.sync_history_summary_write_amplification, summary.writeAmplification))
+        return builder.toString()
+    }
+
+    private inner class RunAdapter : RecyclerView.Adapter<RunAdapter.ViewHolder>() {
+
+        inner class ViewHolder(view: View) : RecyclerView.ViewHolder(view) {
+            var title = view.findViewById<TextView>(R.id.sync_history_item_title)
+            var details = view.findViewById<TextView>(R.id.sync_history_item_details)
+        }
+
+        private var mRuns = emptyList<SyncHistory.Run>()
+
+        fun setRuns(runs: List<SyncHistory.Run>) {
+            mRuns = runs
+            notifyDataSetChanged()
+        }
+
+        override fun getItemCount() = mRuns.size
+
+        override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ViewHolder {
+            return ViewHolder(LayoutInflater.from(parent.context).inflate(R.layout.sync_history_item, parent, false))
+        }
+
+        override fun onBindViewHolder(holder: ViewHolder, position: Int) {
+            val run = mRuns[position]
+            val time = DateUtils.formatDateTime(this@SyncHistoryActivity, run.startTime,
+                    DateUtils.FORMAT_SHOW_DATE or DateUtils.FORMAT_SHOW_TIME)
+            val outcome = resources.getStringArray(R.array.sync_history_outcomes)[run.outcome.ordinal]
+            holder.title.text = getString(R.string.sync_history_run_title, time, outcome, run.durationMs)
+
+            val details = StringBuilder(run.account)
+            run.reason?.let { details.append(" - ").append(it) }
+            if (run.outcome == SyncHistory.Outcome.SUCCESS || run.outcome == SyncHistory.Outcome.FAILED) {
+                val stages = resources.getStringArray(R.array.sync_history_stages)
+                details.append('\n').append(SyncStageTimings.Stage.values().joinToString("  ") {
+                    getString(R.string.sync_history_run_stage, stages[it.ordinal], run.stageMs[it.ordinal])
+                })
+                details.append('\n').append(getString(R.string.sync_history_run_details, run.httpStatus,
+                        Formatter.formatShortFileSize(this@SyncHistoryActivity, run.bytesDownloaded),
+                        run.eventsParsed, run.providerOps, run.added, run.modified, run.removed))
+            }
+            holder.details.text = details
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+// The preferences used by the sync, read once when the sync starts, so that the whole sync works
+// with the same configuration and the sync code does not have to read and parse them again for
+// every event.
+class SyncSettings(val language: String,
+                   val fbLink: Boolean,
+                   val debugLogging: Boolean,
+                   private val mCalendars: Map<FBCalendar.CalendarType, CalendarSettings>) {
+
+    class CalendarSettings(val enabled: Boolean,
+                           val color: Int,
+                           val reminders: List<FBReminder>,
+                           val allDayReminders: List<FBReminder>)
+
+    fun calendar(type: FBCalendar.CalendarType) = mCalendars.getValue(type)
+
+    companion object {
+        fun load(prefs: Preferences): SyncSettings {
+            return SyncSettings(
+                    language = prefs.language(),
+                    fbLink = prefs.fbLink(),
+                    debugLogging = prefs.debugLogging(),
+                    mCalendars = mapOf(
+                            FBCalendar.CalendarType.TYPE_ATTENDING to CalendarSettings(
+                                    prefs.attendingCalendarEnabled(),
+                                    prefs.attendingCalendarColor(),
+                                    prefs.attendingCalendarReminders(),
+                                    prefs.attendingCalendarAllDayReminders()),
+                            FBCalendar.CalendarType.TYPE_MAYBE to CalendarSettings(
+                                    prefs.maybeAttendingCalendarEnabled(),
+                                    prefs.maybeAttendingCalendarColor(),
+                                    prefs.maybeAttendingCalendarReminders(),
+                                    prefs.maybeAttendingCalendarAllDayReminders()),
+                            FBCalendar.CalendarType.TYPE_NOT_REPLIED to CalendarSettings(
+                                    prefs.notRespondedCalendarEnabled(),
+                                    prefs.notRespondedCalendarColor(),
+                                    prefs.notRespondedCalendarReminders(),
+                                    prefs.notRespondedCalendarAllDayReminders()),
+                            FBCalendar.CalendarType.TYPE_DECLINED to CalendarSettings(
+                                    prefs.declinedCalendarEnabled(),
+                                    prefs.declinedCalendarColor(),
+                                    prefs.declinedCalendarReminders(),
+                                    prefs.declinedCalendarAllDayReminders()),
+                            // Birthdays are all-day events only
+                            FBCalendar.CalendarType.TYPE_BIRTHDAY to CalendarSettings(
+                                    prefs.birthdayCalendarEnabled(),
+                                    prefs.birthdayCalendarColor(),
+                                    emptyList(),
+                                    prefs.birthdayCalendarAllDayReminders())))
+        }
+    }
+}
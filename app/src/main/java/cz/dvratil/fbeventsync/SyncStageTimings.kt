@@ -0,0 +1,53 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+// Time spent in each stage of the sync pipeline, so that we can tell which stage limits the
+// throughput on a given device. Stages run on different threads, so the times may add up to
+// more than the wall time of the sync.
+class SyncStageTimings {
+
+    enum class Stage {
+        FETCH,
+        PARSE,
+        CLASSIFY,
+        DIFF,
+        APPLY
+    }
+
+    private val mNanos = AtomicLongArray(Stage.values().size)
+
+    fun add(stage: Stage, nanos: Long) {
+        mNanos.addAndGet(stage.ordinal, nanos)
+    }
+
+    inline fun <T> measure(stage: Stage, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            add(stage, System.nanoTime() - start)
+        }
+    }
+
+    fun millis(stage: Stage) = mNanos.get(stage.ordinal) / 1000000
+
+    override fun toString() = Stage.values().joinToString(", ") { "${it.name.toLowerCase()}: ${millis(it)}ms" }
+}
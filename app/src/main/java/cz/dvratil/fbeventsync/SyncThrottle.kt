@@ -0,0 +1,67 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.accounts.Account
+import android.accounts.AccountManager
+import android.content.Context
+
+// Limits how often each account is synced. The state is kept per account, so that syncing one
+// account does not prevent other accounts from syncing.
+class SyncThrottle(context: Context, private val mAccount: Account) {
+
+    private val mAccountManager = AccountManager.get(context)
+
+    enum class Result {
+        ALLOWED,
+        TOO_SOON
+    }
+
+    var lastSyncTime = 0
+        private set
+
+    // Records a sync attempt at time `now` (in seconds) and returns whether it is allowed to run
+    fun acquire(now: Int): Result {
+        synchronized(sLock) {
+            lastSyncTime = getInt(LAST_SYNC_TIME)
+            // Don't sync more often than every minute
+            if (now - lastSyncTime < MIN_SYNC_INTERVAL) {
+                return Result.TOO_SOON
+            }
+
+            mAccountManager.setUserData(mAccount, LAST_SYNC_TIME, now.toString())
+            return Result.ALLOWED
+        }
+    }
+
+    // Human readable state of the throttle at time `now`, for diagnostics
+    fun describe(now: Int): String {
+        val last = getInt(LAST_SYNC_TIME)
+        return "last sync ${if (last == 0) "never" else "${now - last}s ago"}"
+    }
+
+    private fun getInt(key: String) = mAccountManager.getUserData(mAccount, key)?.toIntOrNull() ?: 0
+
+    companion object {
+        private const val MIN_SYNC_INTERVAL = 60
+
+        private const val LAST_SYNC_TIME = "last_sync_time"
+
+        private val sLock = Any()
+    }
+}
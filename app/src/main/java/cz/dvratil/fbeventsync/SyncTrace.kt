@@ -0,0 +1,102 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync
+
+import android.annotation.TargetApi
+import android.os.Build
+import android.os.Trace
+
+import java.util.concurrent.atomic.AtomicInteger
+
+// Sections and counters of the sync hot path for systrace/perfetto, so that a captured system
+// trace shows where the sync time goes next to the calendar provider and Binder activity.
+//
+// Tracing is only compiled in when the app is built with -PsyncTracing=true: BuildConfig.SYNC_TRACING
+// is a compile-time constant, so all the calls below become no-ops otherwise. Sections are
+// available since API 18, async sections and counters since API 29.
+object SyncTrace {
+
+    private val sNextCookie = AtomicInteger()
+
+    inline fun <T> section(name: String, block: () -> T): T {
+        if (!BuildConfig.SYNC_TRACING) {
+            return block()
+        }
+        begin(name)
+        try {
+            return block()
+        } finally {
+            end()
+        }
+    }
+
+    fun begin(name: String) {
+        if (BuildConfig.SYNC_TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            beginSection(name)
+        }
+    }
+
+    fun end() {
+        if (BuildConfig.SYNC_TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            endSection()
+        }
+    }
+
+    // Async sections may end on a different thread than they started on. Returns the cookie
+    // to pass to endAsync().
+    fun beginAsync(name: String): Int {
+        if (!BuildConfig.SYNC_TRACING) {
+            return 0
+        }
+        val cookie = sNextCookie.incrementAndGet()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            beginAsyncSection(name, cookie)
+        }
+        return cookie
+    }
+
+    fun endAsync(name: String, cookie: Int) {
+        if (BuildConfig.SYNC_TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            endAsyncSection(name, cookie)
+        }
+    }
+
+    fun counter(name: String, value: Long) {
+        if (BuildConfig.SYNC_TRACING && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            setCounter(name, value)
+        }
+    }
+
+    // Section names longer than 127 characters make Trace throw
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private fun beginSection(name: String) = Trace.beginSection(name.take(MAX_NAME_LENGTH))
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private fun endSection() = Trace.endSection()
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private fun beginAsyncSection(name: String, cookie: Int) = Trace.beginAsyncSection(name.take(MAX_NAME_LENGTH), cookie)
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private fun endAsyncSection(name: String, cookie: Int) = Trace.endAsyncSection(name.take(MAX_NAME_LENGTH), cookie)
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private fun setCounter(name: String, value: Long) = Trace.setCounter(name.take(MAX_NAME_LENGTH), value)
+
+    private const val MAX_NAME_LENGTH = 127
+}
@@ -19,23 +19,17 @@ package cz.dvratil.fbeventsync.preferences
 
 import android.content.ContentValues
 import android.content.Context
-import android.database.Cursor
 import android.util.Log
 import cz.dvratil.fbeventsync.Logger
 
+// Values are read from the PreferenceCache, writes go to the PreferencesProvider and through
+// to the cache.
 object PreferenceAccessor {
 
     private inline fun <T>query(context: Context, key: String, defaultValue: T, type: PreferencesProvider.ValueType,
-                         extractor:(cursor: Cursor, column: Int) -> T): T {
-        val uri = PreferencesProvider.buildUri(key, type)
-        val cursor = context.contentResolver.query(uri, arrayOf(PreferencesProvider.COLUMN_VALUE),
-                "(${PreferencesProvider.COLUMN_KEY} = ?)", arrayOf(key), null)
-        val result = when(cursor?.moveToFirst()) {
-            true -> extractor(cursor, cursor.getColumnIndex(PreferencesProvider.COLUMN_VALUE))
-            else -> defaultValue
-        }
-        cursor?.close()
-        return result
+                         extractor:(value: Any?) -> T): T {
+        val value = PreferenceCache.get(context, key, type)
+        return if (value === PreferenceCache.NOT_SET) defaultValue else extractor(value)
     }
 
     private inline fun <reified T>update(context: Context, key: String, value: T, type: PreferencesProvider.ValueType) {
@@ -56,6 +50,11 @@ object PreferenceAccessor {
 
         try {
             context.contentResolver.insert(uri, values)
+            PreferenceCache.put(key, type, when (type) {
+                PreferencesProvider.ValueType.BOOLEAN,
+                PreferencesProvider.ValueType.INTEGER -> (value as Int).toLong()
+                else -> value
+            })
         } catch (e: java.lang.IllegalArgumentException) {
             Logger.getInstance(context).error("PREF", "Caught IllegalArgumentException: $e for uri $uri")
             throw e
@@ -65,11 +64,12 @@ object PreferenceAccessor {
     private fun remove(context: Context, key: String, type: PreferencesProvider.ValueType) {
         var uri = PreferencesProvider.buildUri(key, type)
         context.contentResolver.delete(uri, "(${PreferencesProvider.COLUMN_KEY} = ?)", arrayOf(key))
+        PreferenceCache.remove(key, type)
     }
 
     fun getString(context: Context, key: String, defaultValue: String?): String?
             = query(context, key, defaultValue, PreferencesProvider.ValueType.STRING) {
-                cursor, column -> cursor.getString(column)
+                value -> value as String?
             }
 
     fun putString(context: Context, key: String, value: String?)
@@ -80,9 +80,7 @@ object PreferenceAccessor {
 
 
     fun getStringSet(context: Context, key: String, defaultValue: Set<String>?)
-            = query(context, key, defaultValue, PreferencesProvider.ValueType.STRINGSET) {
-                cursor, column -> Utils.stringToSet(cursor.getString(column))
-            }
+            = PreferenceCache.getStringSet(context, key) ?: defaultValue
 
     fun putStringSet(context: Context, key: String, value: Set<String>?)
             = update(context, key, Utils.setToString(value), PreferencesProvider.ValueType.STRINGSET)
@@ -93,7 +91,7 @@ object PreferenceAccessor {
 
     fun getInteger(context: Context, key: String, defaultValue: Int)
             = query(context, key, defaultValue, PreferencesProvider.ValueType.INTEGER) {
-                cursor, column -> cursor.getInt(column)
+                value -> (value as Long).toInt()
            }
 
     fun putInteger(context: Context, key: String, value: Int)
@@ -105,7 +103,7 @@ object PreferenceAccessor {
 
     fun getLong(context: Context, key: String, defaultValue: Long)
             = query(context, key, defaultValue, PreferencesProvider.ValueType.LONG) {
-                cursor, column -> cursor.getLong(column)
+                value -> value as Long
             }
 
     fun putLong(context: Context, key: String, value: Long)
@@ -117,7 +115,7 @@ object PreferenceAccessor {
 
     fun getBoolean(context: Context, key: String, defaultValue: Boolean)
             = query(context, key, defaultValue, PreferencesProvider.ValueType.BOOLEAN) {
-                cursor, column -> (cursor.getInt(column) == 1)
+                value -> ((value as Long).toInt() == 1)
             }
 
     fun putBoolean(context: Context, key: String, value: Boolean)
@@ -129,7 +127,7 @@ object PreferenceAccessor {
 
     fun getFloat(context: Context, key: String, defaultValue: Float)
             = query(context, key, defaultValue, PreferencesProvider.ValueType.FLOAT) {
-                cursor, column -> cursor.getFloat(column)
+                value -> value as Float
             }
 
     fun putFloat(context: Context, key: String, value: Float)
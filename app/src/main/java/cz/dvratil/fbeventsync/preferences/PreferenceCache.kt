@@ -0,0 +1,162 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync.preferences
+
+import android.content.Context
+import android.database.ContentObserver
+import android.database.Cursor
+import android.net.Uri
+
+// Per-process cache of everything stored in the PreferencesProvider, so that reading a preference
+// does not cost a provider round-trip (and an IPC from the sync process). All tables are loaded
+// at once on first use. Changes are picked up through the provider's change notifications, which
+// are delivered to all processes: the changed key is marked stale and read again on next access.
+// Writes from this process update the cache right away.
+internal object PreferenceCache {
+
+    // Returned by get() when the key is not set
+    val NOT_SET = Any()
+
+    // One type per table, used to read the values: LONG for the int table, STRING for the
+    // string table and FLOAT for the float table
+    private val TABLE_TYPES = arrayOf(PreferencesProvider.ValueType.LONG,
+                                      PreferencesProvider.ValueType.STRING,
+                                      PreferencesProvider.ValueType.FLOAT)
+    private const val ALL_KEYS = "all"
+
+    private var mObserver: ContentObserver? = null
+    // Values by table and key, empty until loaded
+    private val mValues = HashMap<String, HashMap<String, Any?>>()
+    // Keys that have been changed since they were loaded, by table
+    private val mStale = HashMap<String, HashSet<String>>()
+    // Decoded string sets, so that they don't have to be parsed on every access
+    private val mStringSets = HashMap<String, Set<String>>()
+
+    @Synchronized
+    fun get(context: Context, key: String, type: PreferencesProvider.ValueType): Any? {
+        val values = load(context)?.get(type.table()) ?: return read(context, key, type)
+        if (mStale[type.table()]?.remove(key) == true) {
+            val value = read(context, key, type)
+            if (value === NOT_SET) {
+                values.remove(key)
+            } else {
+                values[key] = value
+            }
+        }
+        return if (values.containsKey(key)) values[key] else NOT_SET
+    }
+
+    // Returns null when the key is not set
+    @Synchronized
+    fun getStringSet(context: Context, key: String): Set<String>? {
+        mStringSets[key]?.let { return it }
+        val value = get(context, key, PreferencesProvider.ValueType.STRINGSET)
+        if (value === NOT_SET) {
+            return null
+        }
+        val set = Utils.stringToSet(value as String)
+        mStringSets[key] = set
+        return set
+    }
+
+    // `value` is the value as stored in the table: Long for the int table, String? for the
+    // string table and Float for the float table
+    @Synchronized
+    fun put(key: String, type: PreferencesProvider.ValueType, value: Any?) {
+        mValues[type.table()]?.put(key, value)
+        mStale[type.table()]?.remove(key)
+        mStringSets.remove(key)
+    }
+
+    @Synchronized
+    fun remove(key: String, type: PreferencesProvider.ValueType) {
+        mValues[type.table()]?.remove(key)
+        mStale[type.table()]?.remove(key)
+        mStringSets.remove(key)
+    }
+
+    @Synchronized
+    private fun invalidate(uri: Uri?) {
+        val segments = uri?.pathSegments
+        val type = if (segments?.size == 2) {
+            PreferencesProvider.ValueType.values().find { it.typeName() == segments[0] }
+        } else {
+            null
+        }
+        if (segments == null || type == null) {
+            // We don't know what has changed, load everything again
+            mValues.clear()
+            mStringSets.clear()
+            return
+        }
+        mStale.getOrPut(type.table()) { HashSet() }.add(segments[1])
+        mStringSets.remove(segments[1])
+    }
+
+    // Returns null when the provider could not be queried
+    private fun load(context: Context): Map<String, HashMap<String, Any?>>? {
+        val resolver = (context.applicationContext ?: context).contentResolver
+        if (mObserver == null) {
+            // Registered before loading, so that no change can slip in between
+            val observer = object : ContentObserver(null) {
+                override fun onChange(selfChange: Boolean) = onChange(selfChange, null)
+                override fun onChange(selfChange: Boolean, uri: Uri?) = invalidate(uri)
+            }
+            resolver.registerContentObserver(Uri.parse("content://${PreferencesProvider.AUTHORITY}"), true, observer)
+            mObserver = observer
+        }
+        if (mValues.isNotEmpty()) {
+            return mValues
+        }
+
+        val tables = HashMap<String, HashMap<String, Any?>>()
+        for (type in TABLE_TYPES) {
+            val cursor = resolver.query(PreferencesProvider.buildUri(ALL_KEYS, type),
+                    arrayOf(PreferencesProvider.COLUMN_KEY, PreferencesProvider.COLUMN_VALUE),
+                    null, null, null) ?: return null
+            val values = HashMap<String, Any?>()
+            cursor.use {
+                while (it.moveToNext()) {
+                    values[it.getString(0)] = value(it, 1, type)
+                }
+            }
+            tables[type.table()] = values
+        }
+        mValues.putAll(tables)
+        mStale.clear()
+        mStringSets.clear()
+        return mValues
+    }
+
+    private fun read(context: Context, key: String, type: PreferencesProvider.ValueType): Any? {
+        val uri = PreferencesProvider.buildUri(key, type)
+        val cursor = context.contentResolver.query(uri, arrayOf(PreferencesProvider.COLUMN_VALUE),
+                "(${PreferencesProvider.COLUMN_KEY} = ?)", arrayOf(key), null) ?: return NOT_SET
+        return cursor.use {
+            if (it.moveToFirst()) value(it, 0, type) else NOT_SET
+        }
+    }
+
+    private fun value(cursor: Cursor, column: Int, type: PreferencesProvider.ValueType): Any? {
+        return when (type.table()) {
+            StoreHelper.INT_TABLE -> cursor.getLong(column)
+            StoreHelper.FLOAT_TABLE -> cursor.getFloat(column)
+            else -> cursor.getString(column)
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+public class ICalParserTest {
+
+    private static final String FEED =
+            "BEGIN:VCALENDAR\r\n" +
+            "PRODID:-//Facebook//NONSGML Facebook Events V1.0//EN\r\n" +
+            "VERSION:2.0\r\n" +
+            "BEGIN:VEVENT\r\n" +
+            "DTSTAMP:20191010T101010Z\r\n" +
+            "LAST-MODIFIED:20191010T101010Z\r\n" +
+            "CREATED:20191010T101010Z\r\n" +
+            "SEQUENCE:0\r\n" +
+            "ORGANIZER;CN=\"Doe: John\":MAILTO:noreply@facebookmail.com\r\n" +
+            "DTSTART:20191017T180000Z\r\n" +
+            "DTEND:20191017T200000Z\r\n" +
+            "UID:e123456789@facebook.com\r\n" +
+            "SUMMARY:Party\\, with friends\r\n" +
+            "LOCATION:Prag\r\n" +
+            " ue\r\n" +
+            "URL:https://www.facebook.com/events/123456789/\r\n" +
+            "DESCRIPTION:First line\\nSecond \\\\ line\\; end\\n\\nhttps://www.facebo\r\n" +
+            " ok.com/events/123456789/\r\n" +
+            "CLASS:PUBLIC\r\n" +
+            "STATUS:CONFIRMED\r\n" +
+            "PARTSTAT:ACCEPTED\r\n" +
+            "END:VEVENT\r\n" +
+            "BEGIN:VEVENT\r\n" +
+            "UID:b987654321@facebook.com\r\n" +
+            "SUMMARY:Jane Doe's birthday\r\n" +
+            "DTSTART;VALUE=DATE:20200229\r\n" +
+            "BEGIN:VALARM\r\n" +
+            "DESCRIPTION:Ignored\r\n" +
+            "END:VALARM\r\n" +
+            "END:VEVENT\r\n" +
+            "END:VCALENDAR\r\n";
+
+    private static final String TZID_FEED =
+            "BEGIN:VCALENDAR\r\n" +
+            "VERSION:2.0\r\n" +
+            "BEGIN:VEVENT\r\n" +
+            "UID:e1@facebook.com\r\n" +
+            "SUMMARY:Olson timezone\r\n" +
+            "DTSTART;TZID=Europe/Prague:20191017T200000\r\n" +
+            "DTEND;TZID=Europe/Prague:20191017T220000\r\n" +
+            "END:VEVENT\r\n" +
+            "BEGIN:VEVENT\r\n" +
+            "UID:e2@facebook.com\r\n" +
+            "SUMMARY:Unknown timezone\r\n" +
+            "DTSTART;TZID=Nowhere/Special:20191017T200000\r\n" +
+            "END:VEVENT\r\n" +
+            "END:VCALENDAR\r\n";
+
+    private static List<ICalEventRecord> parse(ICalParser.Engine engine) throws Exception {
+        return parse(engine, FEED);
+    }
+
+    private static List<ICalEventRecord> parse(ICalParser.Engine engine, String feed) throws Exception {
+        ICalParser parser = ICalParser.Companion.create(engine, new ByteArrayInputStream(feed.getBytes(StandardCharsets.UTF_8)));
+        List<ICalEventRecord> records = new ArrayList<>();
+        ICalEventRecord record;
+        while ((record = parser.next()) != null) {
+            records.add(record);
+        }
+        parser.close();
+        return records;
+    }
+
+    @Test
+    public void testScanner() throws Exception {
+        List<ICalEventRecord> records = parse(ICalParser.Engine.SCANNER);
+        Assert.assertEquals(2, records.size());
+
+        ICalEventRecord event = records.get(0);
+        Assert.assertEquals("e123456789@facebook.com", event.getUid());
+        Assert.assertEquals("Party, with friends", event.getSummary());
+        Assert.assertEquals("Doe: John", event.getOrganizer());
+        Assert.assertEquals("Prague", event.getLocation());
+        Assert.assertEquals("First line\nSecond \\ line; end\n\nhttps://www.facebook.com/events/123456789/",
+                            event.getDescription());
+        Assert.assertEquals(1571335200000L, event.getStart().getTime());
+        Assert.assertEquals(1571342400000L, event.getEnd().getTime());
+        Assert.assertEquals("ACCEPTED", event.getPartStat());
+
+        ICalEventRecord birthday = records.get(1);
+        Assert.assertEquals("b987654321@facebook.com", birthday.getUid());
+        Assert.assertNull(birthday.getDescription());
+        Assert.assertNull(birthday.getEnd());
+    }
+
+    @Test
+    public void testEnginesAgree() throws Exception {
+        Assert.assertEquals(parse(ICalParser.Engine.BIWEEKLY), parse(ICalParser.Engine.SCANNER));
+    }
+
+    @Test
+    public void testTimeZones() throws Exception {
+        List<ICalEventRecord> records = parse(ICalParser.Engine.SCANNER, TZID_FEED);
+        Assert.assertEquals(2, records.size());
+        // 20:00 CEST
+        Assert.assertEquals(1571335200000L, records.get(0).getStart().getTime());
+        Assert.assertEquals(1571342400000L, records.get(0).getEnd().getTime());
+
+        // Unknown timezones are floating time, not GMT
+        Calendar local = Calendar.getInstance();
+        local.clear();
+        local.set(2019, Calendar.OCTOBER, 17, 20, 0, 0);
+        Assert.assertEquals(local.getTimeInMillis(), records.get(1).getStart().getTime());
+
+        Assert.assertEquals(parse(ICalParser.Engine.BIWEEKLY, TZID_FEED), records);
+    }
+}
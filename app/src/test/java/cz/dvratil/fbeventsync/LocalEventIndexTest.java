@@ -0,0 +1,74 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LocalEventIndexTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    private static final long NOW = 1550000000000L;
+
+    private static boolean isPast(long dtStart, Long dtEnd, boolean allDay, long now) {
+        return LocalEventIndex.Companion.isPast(dtStart, dtEnd, allDay, now);
+    }
+
+    @Test
+    public void testTimedEvents() {
+        // Ended an hour ago
+        Assert.assertTrue(isPast(NOW - 3 * HOUR, NOW - HOUR, false, NOW));
+        // Ongoing
+        Assert.assertFalse(isPast(NOW - HOUR, NOW + HOUR, false, NOW));
+        // Upcoming
+        Assert.assertFalse(isPast(NOW + HOUR, NOW + 2 * HOUR, false, NOW));
+        // Multi-day event that has started days ago but is still running
+        Assert.assertFalse(isPast(NOW - 3 * DAY, NOW + DAY, false, NOW));
+    }
+
+    @Test
+    public void testAllDayEvents() {
+        Assert.assertTrue(isPast(NOW - 2 * DAY, NOW - DAY, true, NOW));
+        Assert.assertFalse(isPast(NOW - HOUR, NOW - HOUR + DAY, true, NOW));
+        Assert.assertFalse(isPast(NOW + DAY, NOW + 2 * DAY, true, NOW));
+    }
+
+    @Test
+    public void testWithoutEnd() {
+        // Timed events without DTEND end when they start
+        Assert.assertTrue(isPast(NOW - 1, null, false, NOW));
+        Assert.assertFalse(isPast(NOW + HOUR, null, false, NOW));
+        // All-day events without DTEND (birthdays) last for one day
+        Assert.assertFalse(isPast(NOW - HOUR, null, true, NOW));
+        Assert.assertFalse(isPast(NOW - DAY + 1, null, true, NOW));
+        Assert.assertTrue(isPast(NOW - DAY - 1, null, true, NOW));
+        Assert.assertFalse(isPast(NOW + DAY, null, true, NOW));
+    }
+
+    @Test
+    public void testNowBoundary() {
+        // An event that ends right now is not in the past yet
+        Assert.assertFalse(isPast(NOW - HOUR, NOW, false, NOW));
+        Assert.assertTrue(isPast(NOW - HOUR, NOW - 1, false, NOW));
+        Assert.assertFalse(isPast(NOW, null, false, NOW));
+        Assert.assertFalse(isPast(NOW - DAY, null, true, NOW));
+        Assert.assertTrue(isPast(NOW - DAY - 1, null, true, NOW));
+        Assert.assertFalse(isPast(NOW - DAY, NOW, true, NOW));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class LogIndexTest {
+
+    private static final String LOG =
+            "2019-10-16 12:00:00.000 D/SYNC: first\n" +
+            "2019-10-16 12:00:00.001 I/GRAPH: second\n" +
+            "  continuation of second\n" +
+            "2019-10-16 12:00:00.002 E/SYNC: third\n";
+
+    private static ByteBuffer buffer(String data) {
+        return ByteBuffer.wrap(data.getBytes(Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void testLines() {
+        LogIndex index = new LogIndex();
+        Assert.assertEquals(4, index.addSegment(buffer(LOG)));
+        Assert.assertEquals(2, index.addSegment(buffer("short\nÚTF-8 line\nincomplete")));
+        Assert.assertEquals(6, index.getSize());
+        Assert.assertEquals("2019-10-16 12:00:00.000 D/SYNC: first", index.line(0));
+        Assert.assertEquals("  continuation of second", index.line(2));
+        Assert.assertEquals("short", index.line(4));
+        Assert.assertEquals("ÚTF-8 line", index.line(5));
+        Assert.assertEquals("", index.line(6));
+
+        Assert.assertEquals(Logger.Level.DEBUG, index.level(0));
+        Assert.assertEquals(Logger.Level.INFO, index.level(1));
+        Assert.assertNull(index.level(2));
+        Assert.assertEquals(Logger.Level.ERROR, index.level(3));
+        Assert.assertNull(index.level(4));
+    }
+
+    @Test
+    public void testExtendLastSegment() {
+        LogIndex index = new LogIndex();
+        String partial = LOG + "2019-10-16 12:00:00.003 W/SYNC: fou";
+        Assert.assertEquals(4, index.addSegment(buffer(partial)));
+        Assert.assertEquals(LOG.length(), index.getIndexedBytes());
+
+        String complete = partial + "rth\n2019-10-16 12:00:00.004 I/SYNC: fifth\n";
+        Assert.assertEquals(2, index.extendLastSegment(buffer(complete)));
+        Assert.assertEquals(6, index.getSize());
+        Assert.assertEquals("2019-10-16 12:00:00.003 W/SYNC: fourth", index.line(4));
+        Assert.assertEquals("2019-10-16 12:00:00.004 I/SYNC: fifth", index.line(5));
+        Assert.assertEquals(complete.length(), index.getIndexedBytes());
+    }
+
+    private static int[] filter(LogIndex index, LogIndex.Filter filter) {
+        kotlin.Pair<int[], Integer> result = index.filter(filter, 0, new int[0], 0);
+        int[] lines = new int[result.getSecond()];
+        System.arraycopy(result.getFirst(), 0, lines, 0, lines.length);
+        return lines;
+    }
+
+    @Test
+    public void testFilter() {
+        LogIndex index = new LogIndex();
+        index.addSegment(buffer(LOG));
+
+        Assert.assertArrayEquals(new int[] { 0, 1, 2, 3 }, filter(index, new LogIndex.Filter(Logger.Level.DEBUG, null)));
+        // Continuation lines follow the line they belong to
+        Assert.assertArrayEquals(new int[] { 1, 2, 3 }, filter(index, new LogIndex.Filter(Logger.Level.INFO, null)));
+        Assert.assertArrayEquals(new int[] { 3 }, filter(index, new LogIndex.Filter(Logger.Level.WARNING, null)));
+        Assert.assertArrayEquals(new int[] { 0, 3 }, filter(index, new LogIndex.Filter(Logger.Level.DEBUG, "SYNC")));
+        Assert.assertArrayEquals(new int[] { 1, 2 }, filter(index, new LogIndex.Filter(Logger.Level.DEBUG, "GRAPH")));
+        Assert.assertArrayEquals(new int[] {}, filter(index, new LogIndex.Filter(Logger.Level.DEBUG, "SYN")));
+    }
+
+    @Test
+    public void testFilterIncrementally() {
+        LogIndex index = new LogIndex();
+        index.addSegment(buffer(LOG));
+        LogIndex.Filter filter = new LogIndex.Filter(Logger.Level.INFO, null);
+        kotlin.Pair<int[], Integer> result = index.filter(filter, 0, new int[0], 0);
+        Assert.assertEquals(3, (int) result.getSecond());
+
+        int size = index.getSize();
+        index.addSegment(buffer("  continuation of third\n2019-10-16 12:00:00.005 D/SYNC: sixth\n"));
+        result = index.filter(filter, size, result.getFirst(), result.getSecond());
+        Assert.assertEquals(4, (int) result.getSecond());
+        Assert.assertEquals(4, result.getFirst()[3]);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoggerRepeatFilterTest {
+
+    private static class Lines implements Logger.RepeatFilter.Sink {
+        final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void write(long time, Logger.Level level, String tag, String msg) {
+            lines.add(level + "/" + tag + ": " + msg);
+        }
+    }
+
+    @Test
+    public void testFoldRepeats() {
+        Logger.RepeatFilter filter = new Logger.RepeatFilter(20, 1000, 60000);
+        Lines sink = new Lines();
+        filter.filter(1, Logger.Level.INFO, "SYNC", "same", sink);
+        filter.filter(2, Logger.Level.INFO, "SYNC", "same", sink);
+        filter.filter(3, Logger.Level.INFO, "SYNC", "same", sink);
+        filter.filter(4, Logger.Level.WARNING, "SYNC", "same", sink);
+        filter.filter(5, Logger.Level.WARNING, "SYNC", "same", sink);
+        filter.endWindow(6, sink);
+
+        Assert.assertEquals(4, sink.lines.size());
+        Assert.assertEquals("I/SYNC: same", sink.lines.get(0));
+        Assert.assertEquals("I/SYNC: Previous message repeated 2 times", sink.lines.get(1));
+        Assert.assertEquals("W/SYNC: same", sink.lines.get(2));
+        Assert.assertEquals("W/SYNC: Previous message repeated 1 times", sink.lines.get(3));
+    }
+
+    @Test
+    public void testTemplateLimit() {
+        Logger.RepeatFilter filter = new Logger.RepeatFilter(3, 1000, 60000);
+        Lines sink = new Lines();
+        for (int i = 0; i < 10; ++i) {
+            filter.filter(i, Logger.Level.WARNING, "EVENT", "Unknown RSVP status for event " + (1000 + i), sink);
+            filter.filter(i, Logger.Level.INFO, "EVENT", "Other " + i, sink);
+        }
+        filter.endWindow(10, sink);
+
+        Assert.assertEquals(8, sink.lines.size());
+        Assert.assertEquals("W/EVENT: Unknown RSVP status for event 1002", sink.lines.get(4));
+        Assert.assertEquals("I/EVENT: Other 2", sink.lines.get(5));
+        Assert.assertTrue(sink.lines.contains(
+                "W/EVENT: Suppressed 7 more similar messages, first: Unknown RSVP status for event 1003"));
+        Assert.assertTrue(sink.lines.contains("I/EVENT: Suppressed 7 more similar messages, first: Other 3"));
+
+        // The limits start over in the next window
+        sink.lines.clear();
+        filter.filter(11, Logger.Level.INFO, "EVENT", "Other 11", sink);
+        Assert.assertEquals(1, sink.lines.size());
+    }
+
+    @Test
+    public void testTagLimit() {
+        Logger.RepeatFilter filter = new Logger.RepeatFilter(20, 5, 60000);
+        Lines sink = new Lines();
+        for (int i = 0; i < 10; ++i) {
+            filter.filter(i, Logger.Level.DEBUG, "CAL", "Line " + (char) ('a' + i), sink);
+        }
+        filter.filter(10, Logger.Level.DEBUG, "SYNC", "Not limited", sink);
+
+        Assert.assertEquals(6, sink.lines.size());
+        Assert.assertEquals("D/SYNC: Not limited", sink.lines.get(5));
+
+        // Expires the window
+        filter.tick(60010, sink);
+        Assert.assertEquals("W/CAL: Suppressed 5 more messages, first: Line f", sink.lines.get(6));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class LoggerTimestampFormatTest {
+
+    private static void check(TimeZone tz, long... times) {
+        SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        expected.setTimeZone(tz);
+        Logger.TimestampFormat format = new Logger.TimestampFormat(Calendar.getInstance(tz));
+        StringBuilder builder = new StringBuilder();
+        for (long time : times) {
+            builder.setLength(0);
+            format.append(time, builder);
+            Assert.assertEquals(expected.format(new Date(time)), builder.toString());
+        }
+    }
+
+    @Test
+    public void testFormat() {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        check(utc, 0L, 1L, 999L, 1000L, 1001L);
+        // Same second, different milliseconds, then going back in time
+        check(utc, 1571234567001L, 1571234567999L, 1571234567000L, 1571234566999L);
+    }
+
+    @Test
+    public void testTimeZones() {
+        Random random = new Random(42);
+        long[] times = new long[1000];
+        long time = 1546300800000L; // 2019-01-01
+        for (int i = 0; i < times.length; ++i) {
+            time += random.nextInt(86400000);
+            times[i] = time;
+        }
+        // Prague has DST transitions within the tested range
+        check(TimeZone.getTimeZone("Europe/Prague"), times);
+        check(TimeZone.getTimeZone("America/St_Johns"), times);
+    }
+}
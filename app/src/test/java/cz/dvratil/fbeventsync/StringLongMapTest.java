@@ -0,0 +1,92 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class StringLongMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        StringLongMap map = new StringLongMap();
+        Assert.assertTrue(map.isEmpty());
+
+        map.put("123", 1L);
+        map.put("456", 2L);
+        map.put("123", 3L);
+        Assert.assertEquals(2, map.getSize());
+        Assert.assertEquals(3L, map.get("123", -1L));
+        Assert.assertEquals(2L, map.get("456", -1L));
+        Assert.assertEquals(-1L, map.get("789", -1L));
+
+        Assert.assertTrue(map.remove("123"));
+        Assert.assertFalse(map.remove("123"));
+        Assert.assertFalse(map.containsKey("123"));
+        Assert.assertTrue(map.containsKey("456"));
+        Assert.assertEquals(1, map.getSize());
+
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertFalse(map.containsKey("456"));
+    }
+
+    @Test
+    public void testValues() {
+        StringLongMap map = new StringLongMap();
+        map.put("a", 1L);
+        map.put("b", 2L);
+        map.put("c", 3L);
+        map.remove("b");
+        long[] values = map.values();
+        Arrays.sort(values);
+        Assert.assertArrayEquals(new long[]{ 1L, 3L }, values);
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        // Random mix of inserts and removals to exercise growing and tombstone reuse
+        StringLongMap map = new StringLongMap();
+        Map<String, Long> reference = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String key = Integer.toString(random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(reference.remove(key) != null, map.remove(key));
+            } else {
+                long value = random.nextLong();
+                reference.put(key, value);
+                map.put(key, value);
+            }
+        }
+
+        Assert.assertEquals(reference.size(), map.getSize());
+        for (Map.Entry<String, Long> entry : reference.entrySet()) {
+            Assert.assertEquals(entry.getValue().longValue(), map.get(entry.getKey(), Long.MIN_VALUE));
+        }
+        for (int i = 0; i < 2000; i++) {
+            String key = Integer.toString(i);
+            Assert.assertEquals(reference.containsKey(key), map.containsKey(key));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SyncDiagnosticsHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        SyncDiagnostics.Histogram histogram = new SyncDiagnostics.Histogram();
+        Assert.assertEquals(0L, histogram.getCount());
+        Assert.assertEquals(0L, histogram.percentile(50));
+    }
+
+    @Test
+    public void testPercentiles() {
+        SyncDiagnostics.Histogram histogram = new SyncDiagnostics.Histogram();
+        // 90 fast values in [4, 8) and 10 slow ones in [512, 1024)
+        for (int i = 0; i < 90; ++i) {
+            histogram.add(5);
+        }
+        for (int i = 0; i < 10; ++i) {
+            histogram.add(600);
+        }
+        Assert.assertEquals(100L, histogram.getCount());
+        Assert.assertEquals(8L, histogram.percentile(50));
+        Assert.assertEquals(8L, histogram.percentile(90));
+        // Capped by the maximum seen value
+        Assert.assertEquals(600L, histogram.percentile(95));
+        Assert.assertEquals(600L, histogram.percentile(100));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        SyncDiagnostics.Histogram histogram = new SyncDiagnostics.Histogram();
+        histogram.add(0);
+        histogram.add(-5);
+        histogram.add(Long.MAX_VALUE / 2);
+        // Values below 1ms all fall into the first bucket
+        Assert.assertEquals(1L, histogram.percentile(50));
+        Assert.assertEquals(Long.MAX_VALUE / 2, histogram.percentile(100));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+    Copyright (C) 2019  Daniel Vrátil <me@dvratil.cz>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package cz.dvratil.fbeventsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SyncHistorySummaryTest {
+
+    private static SyncHistory.Run run(SyncHistory.Outcome outcome, long duration, int ops, long changes) {
+        SyncHistory.Run run = new SyncHistory.Run("test", 0);
+        run.setOutcome(outcome);
+        run.setDurationMs(duration);
+        run.setProviderOps(ops);
+        run.setModified(changes);
+        return run;
+    }
+
+    @Test
+    public void testPercentile() {
+        Assert.assertEquals(0L, SyncHistory.Summary.percentile(Collections.<Long>emptyList(), 50));
+        Assert.assertEquals(7L, SyncHistory.Summary.percentile(Collections.singletonList(7L), 95));
+
+        List<Long> values = new ArrayList<>();
+        for (long i = 100; i >= 1; --i) {
+            values.add(i);
+        }
+        Assert.assertEquals(50L, SyncHistory.Summary.percentile(values, 50));
+        Assert.assertEquals(95L, SyncHistory.Summary.percentile(values, 95));
+        Assert.assertEquals(100L, SyncHistory.Summary.percentile(values, 100));
+        Assert.assertEquals(1L, SyncHistory.Summary.percentile(values, 0));
+    }
+
+    @Test
+    public void testSummary() {
+        SyncHistory.Summary summary = new SyncHistory.Summary(Arrays.asList(
+                run(SyncHistory.Outcome.SUCCESS, 100, 30, 10),
+                run(SyncHistory.Outcome.SUCCESS, 300, 10, 0),
+                run(SyncHistory.Outcome.FAILED, 5000, 0, 0),
+                run(SyncHistory.Outcome.THROTTLED, 0, 0, 0)));
+
+        Assert.assertEquals(4, summary.getTotal());
+        Assert.assertEquals(1, summary.getFailed());
+        Assert.assertEquals(1, summary.getSkipped());
+        // Only successful syncs count towards the timings
+        Assert.assertEquals(100L, summary.getDurationP50());
+        Assert.assertEquals(300L, summary.getDurationP95());
+        Assert.assertEquals(4.0, summary.getWriteAmplification(), 0.001);
+    }
+
+    @Test
+    public void testNoChanges() {
+        SyncHistory.Summary summary = new SyncHistory.Summary(Collections.singletonList(
+                run(SyncHistory.Outcome.SUCCESS, 100, 0, 0)));
+        Assert.assertEquals(0.0, summary.getWriteAmplification(), 0.001);
+    }
+}